@@ -0,0 +1,127 @@
+package io.bonsai.plugins.synonyms;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.CheckedBiConsumer;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Runs a task per item on the compile pool, with no more items in flight than the pool has
+ * threads, so a large batch waits here instead of overflowing the queue of the pool. Items which
+ * the pool rejects anyway, because other work filled its queue, are retried a few times before the
+ * batch fails.
+ *
+ * @author Dan Simpson
+ */
+final class CompileBatch<T> {
+
+  private static final int MAX_REJECTIONS = 5;
+  private static final TimeValue REJECTION_DELAY = TimeValue.timeValueMillis(200);
+
+  private final ThreadPool threadPool;
+  private final Iterator<T> items;
+  private final CheckedBiConsumer<T, ActionListener<Void>, Exception> task;
+  private final ActionListener<Void> listener;
+  private final AtomicInteger remaining;
+  private boolean failed;
+
+  private CompileBatch(
+      ThreadPool threadPool,
+      Collection<T> items,
+      CheckedBiConsumer<T, ActionListener<Void>, Exception> task,
+      ActionListener<Void> listener) {
+    this.threadPool = threadPool;
+    this.items = items.iterator();
+    this.task = task;
+    this.listener = ActionListener.notifyOnce(listener);
+    this.remaining = new AtomicInteger(items.size());
+  }
+
+  /**
+   * Run a task for every item.
+   *
+   * @param threadPool - the thread pool holding the compile executor
+   * @param items - the items to run the task for
+   * @param task - run on the compile pool for each item, completing its listener once the item is
+   *     done; failures of single items are for the task to record, anything it throws or passes to
+   *     its listener fails the whole batch
+   * @param listener - completed once every item is done, or failed as soon as one item fails
+   */
+  static <T> void run(
+      ThreadPool threadPool,
+      Collection<T> items,
+      CheckedBiConsumer<T, ActionListener<Void>, Exception> task,
+      ActionListener<Void> listener) {
+    if (items.isEmpty()) {
+      listener.onResponse(null);
+      return;
+    }
+
+    CompileBatch<T> batch = new CompileBatch<>(threadPool, items, task, listener);
+    int threads = threadPool.info(StoredSynonymsService.COMPILE_THREAD_POOL).getMax();
+    for (int i = 0; i < Math.min(Math.max(1, threads), items.size()); i++) {
+      batch.next();
+    }
+  }
+
+  private void next() {
+    T item;
+    synchronized (this) {
+      if (failed || !items.hasNext()) {
+        return;
+      }
+      item = items.next();
+    }
+    submit(item, 0);
+  }
+
+  private void submit(T item, int rejections) {
+    threadPool
+        .executor(StoredSynonymsService.COMPILE_THREAD_POOL)
+        .execute(
+            new AbstractRunnable() {
+
+              @Override
+              protected void doRun() throws Exception {
+                task.accept(item, ActionListener.wrap((done) -> complete(), this::onFailure));
+              }
+
+              @Override
+              public void onRejection(Exception error) {
+                if (rejections >= MAX_REJECTIONS) {
+                  onFailure(error);
+                  return;
+                }
+                threadPool.schedule(
+                    () -> submit(item, rejections + 1), REJECTION_DELAY, ThreadPool.Names.GENERIC);
+              }
+
+              @Override
+              public void onFailure(Exception error) {
+                fail(error);
+              }
+            });
+  }
+
+  private void complete() {
+    if (remaining.decrementAndGet() == 0) {
+      listener.onResponse(null);
+    } else {
+      next();
+    }
+  }
+
+  private void fail(Exception error) {
+    synchronized (this) {
+      if (failed) {
+        return;
+      }
+      failed = true;
+    }
+    listener.onFailure(error);
+  }
+}
@@ -0,0 +1,117 @@
+package io.bonsai.plugins.synonyms;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Several rulesets merged into one, so a chain which needs all of them makes a single synonym pass
+ * instead of one per ruleset. The merged rules live in a holder of their own, which is rebuilt
+ * whenever a member changes.
+ *
+ * <p>Members are merged in the order they are listed. Explicit mappings ({@code a => b}) in an
+ * earlier ruleset take precedence: a later ruleset can't map an input the earlier one already maps
+ * explicitly. Equivalent synonyms ({@code a, b}) have no direction, so they are always combined.
+ *
+ * @author Dan Simpson
+ */
+class CompositeSynonyms {
+
+  private static final String ARROW = "=>";
+
+  private final List<String> names;
+  private final StoredSynonymsHolder holder;
+  private final AtomicBoolean scheduled = new AtomicBoolean(false);
+  // Merges are versioned locally, so a slow merge can't replace a later one
+  private final AtomicLong sequence = new AtomicLong();
+
+  CompositeSynonyms(List<String> names, StoredSynonymsHolder holder) {
+    this.names = names;
+    this.holder = holder;
+  }
+
+  public List<String> getNames() {
+    return names;
+  }
+
+  public StoredSynonymsHolder getHolder() {
+    return holder;
+  }
+
+  /** Mark the composite for a rebuild, returning false if one is already pending. */
+  public boolean schedule() {
+    return scheduled.compareAndSet(false, true);
+  }
+
+  /** Abandon a pending rebuild, so the next change schedules a new one. */
+  public void cancel() {
+    scheduled.set(false);
+  }
+
+  /**
+   * Merge the current rules of every member, completing a pending rebuild.
+   *
+   * @param members - looks up the current snapshot of a member ruleset by name
+   * @return the merged rules, versioned after every earlier merge
+   */
+  public StoredSynonyms merge(Function<String, StoredSynonymsHolder.Snapshot> members) {
+    scheduled.set(false);
+    // Take the version before reading the members, so later versions always see later rules
+    long version = sequence.incrementAndGet();
+
+    List<List<String>> rules = new ArrayList<>();
+    for (String name : names) {
+      StoredSynonymsHolder.Snapshot snapshot = members.apply(name);
+      if (!snapshot.isEmpty()) {
+        rules.add(snapshot.synonyms().getRules());
+      }
+    }
+
+    StoredSynonyms merged = new StoredSynonyms();
+    merged.setName(holder.getName());
+    merged.setRules(mergeRules(rules));
+    merged.setVersion(version, 1);
+    return merged;
+  }
+
+  /**
+   * Combine the rules of several rulesets, dropping inputs of explicit mappings which an earlier
+   * ruleset already maps explicitly.
+   *
+   * @param members - the rules of each ruleset, in order of precedence
+   * @return the merged rules
+   */
+  static List<String> mergeRules(List<List<String>> members) {
+    Set<String> claimed = new HashSet<>();
+    List<String> merged = new ArrayList<>();
+    for (List<String> rules : members) {
+      Set<String> claims = new HashSet<>();
+      for (String rule : rules) {
+        int arrow = rule.indexOf(ARROW);
+        if (arrow < 0 || rule.trim().startsWith("#")) {
+          merged.add(rule);
+          continue;
+        }
+
+        List<String> inputs = new ArrayList<>();
+        for (String input : rule.substring(0, arrow).split(",")) {
+          String term = input.trim();
+          if (!term.isEmpty() && !claimed.contains(term)) {
+            inputs.add(term);
+            claims.add(term);
+          }
+        }
+        if (!inputs.isEmpty()) {
+          merged.add(String.join(", ", inputs) + " " + rule.substring(arrow));
+        }
+      }
+      // Mappings within a single ruleset combine as usual
+      claimed.addAll(claims);
+    }
+    return merged;
+  }
+}
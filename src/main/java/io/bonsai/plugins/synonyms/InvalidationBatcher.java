@@ -0,0 +1,272 @@
+package io.bonsai.plugins.synonyms;
+
+import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.Invalidation;
+import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.InvalidateAction;
+import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.InvalidateRequestBuilder;
+import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.InvalidateResponse;
+import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.Phase;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Collects ruleset invalidations over a short window and sends them to the cluster as a single
+ * request, so a burst of updates costs one transport round trip and one reload pass per node.
+ * Each caller is completed with the shared response once the batch resolves.
+ *
+ * <p>When targeted, each request only goes to the nodes which use the rulesets it changes, see
+ * {@link InvalidationTargets}. Changes which every node should switch to together are collected
+ * over the same window and sent in two phases, see {@link #activate}.
+ *
+ * @author Dan Simpson
+ */
+class InvalidationBatcher {
+
+  private static final Logger log = LogManager.getLogger(InvalidationBatcher.class);
+
+  private final Client client;
+  private final ClusterService clusterService;
+  private final ThreadPool threadPool;
+  private final TimeValue window;
+  private final TimeValue timeout;
+  private final boolean targeted;
+
+  private Map<String, Pending> pending = new LinkedHashMap<>();
+  private boolean scheduled;
+  private Map<String, Pending> activations = new LinkedHashMap<>();
+  private boolean activationScheduled;
+
+  InvalidationBatcher(
+      Client client,
+      ClusterService clusterService,
+      ThreadPool threadPool,
+      TimeValue window,
+      TimeValue timeout,
+      boolean targeted) {
+    this.client = client;
+    this.clusterService = clusterService;
+    this.threadPool = threadPool;
+    this.window = window;
+    this.timeout = timeout;
+    this.targeted = targeted;
+  }
+
+  /**
+   * Queue an invalidation for the next batch. Invalidations of the same ruleset within a window
+   * collapse into the newest one.
+   *
+   * @param invalidation - the ruleset change to announce
+   * @param listener - completed once the batch containing the change resolves
+   */
+  public void invalidate(Invalidation invalidation, ActionListener<InvalidateResponse> listener) {
+    if (window.millis() <= 0) {
+      send(newBatch(invalidation, listener));
+      return;
+    }
+
+    synchronized (this) {
+      Pending existing = pending.get(invalidation.getName());
+      if (existing == null) {
+        pending.put(invalidation.getName(), new Pending(invalidation, listener));
+      } else {
+        existing.merge(invalidation, listener);
+      }
+
+      if (scheduled) {
+        return;
+      }
+      scheduled = true;
+    }
+
+    threadPool.schedule(this::flush, window, ThreadPool.Names.GENERIC);
+  }
+
+  /**
+   * Send a group of invalidations immediately as a single request, bypassing the window.
+   *
+   * @param invalidations - the ruleset changes to announce, at least one
+   * @param listener - completed once the request resolves
+   */
+  public void invalidateAll(
+      List<Invalidation> invalidations, ActionListener<InvalidateResponse> listener) {
+    Map<String, Pending> batch = new LinkedHashMap<>();
+    for (Invalidation invalidation : invalidations) {
+      Pending existing = batch.get(invalidation.getName());
+      if (existing == null) {
+        // The whole batch resolves at once, so the first entry carries the listener
+        batch.put(
+            invalidation.getName(), new Pending(invalidation, batch.isEmpty() ? listener : null));
+      } else {
+        existing.merge(invalidation, null);
+      }
+    }
+    send(batch);
+  }
+
+  /**
+   * Queue a ruleset change for the next batch announced in two phases: every node compiles and
+   * holds the new rules of the whole batch, then every node swaps them in. Nodes which fail to
+   * prepare still take part in the commit, where they catch up as they would for a single phase
+   * invalidation. Changes to the same ruleset within a window collapse into the newest one.
+   *
+   * @param invalidation - the ruleset change to announce
+   * @param listener - completed with the response to the prepare phase, once the commit resolves
+   */
+  public void activate(Invalidation invalidation, ActionListener<InvalidateResponse> listener) {
+    if (window.millis() <= 0) {
+      sendActivation(newBatch(invalidation, listener));
+      return;
+    }
+
+    synchronized (this) {
+      Pending existing = activations.get(invalidation.getName());
+      if (existing == null) {
+        activations.put(invalidation.getName(), new Pending(invalidation, listener));
+      } else {
+        existing.merge(invalidation, listener);
+      }
+
+      if (activationScheduled) {
+        return;
+      }
+      activationScheduled = true;
+    }
+
+    threadPool.schedule(this::flushActivations, window, ThreadPool.Names.GENERIC);
+  }
+
+  private void flushActivations() {
+    Map<String, Pending> batch;
+    synchronized (this) {
+      batch = activations;
+      activations = new LinkedHashMap<>();
+      activationScheduled = false;
+    }
+
+    if (!batch.isEmpty()) {
+      sendActivation(batch);
+    }
+  }
+
+  private void sendActivation(Map<String, Pending> batch) {
+    List<ActionListener<InvalidateResponse>> listeners = new ArrayList<>();
+    // Both phases go to the same nodes, even if shards move in between
+    String[] nodes = targets(batch.keySet());
+    InvalidateRequestBuilder prepare =
+        InvalidateAction.INSTANCE
+            .newRequestBuilder(client)
+            .setTimeout(timeout)
+            .setNodesIds(nodes)
+            .setPhase(Phase.PREPARE);
+    // The rules were shipped to prepare; nodes which missed them fetch the document
+    InvalidateRequestBuilder commit =
+        InvalidateAction.INSTANCE
+            .newRequestBuilder(client)
+            .setTimeout(timeout)
+            .setNodesIds(nodes)
+            .setPhase(Phase.COMMIT);
+    for (Pending entry : batch.values()) {
+      prepare.add(entry.invalidation);
+      commit.add(entry.invalidation.withoutSource());
+      listeners.addAll(entry.listeners);
+    }
+
+    log.debug("Activating {} rulesets", batch.size());
+    prepare.execute(
+        ActionListener.wrap(
+            (prepared) -> {
+              commit.execute(
+                  ActionListener.wrap(
+                      (committed) -> {
+                        for (String name : batch.keySet()) {
+                          if (committed.failures(name) > 0) {
+                            log.warn(
+                                "Failed to commit rules for {} on nodes {}",
+                                name,
+                                committed.failedNodes(name).keySet());
+                          }
+                        }
+                        ActionListener.onResponse(listeners, prepared);
+                      },
+                      (error) -> ActionListener.onFailure(listeners, error)));
+            },
+            (error) -> ActionListener.onFailure(listeners, error)));
+  }
+
+  private void flush() {
+    Map<String, Pending> batch;
+    synchronized (this) {
+      batch = pending;
+      pending = new LinkedHashMap<>();
+      scheduled = false;
+    }
+
+    if (!batch.isEmpty()) {
+      send(batch);
+    }
+  }
+
+  private void send(Map<String, Pending> batch) {
+    List<ActionListener<InvalidateResponse>> listeners = new ArrayList<>();
+    InvalidateRequestBuilder builder =
+        InvalidateAction.INSTANCE.newRequestBuilder(client).setTimeout(timeout);
+    for (Pending entry : batch.values()) {
+      builder.add(entry.invalidation);
+      listeners.addAll(entry.listeners);
+    }
+    builder.setNodesIds(targets(batch.keySet()));
+
+    log.debug("Invalidating {} rulesets", batch.size());
+    builder.execute(
+        ActionListener.wrap(
+            (response) -> ActionListener.onResponse(listeners, response),
+            (error) -> ActionListener.onFailure(listeners, error)));
+  }
+
+  /** The nodes to send invalidations of the given rulesets to; none means every node. */
+  private String[] targets(Set<String> rulesets) {
+    if (!targeted) {
+      return new String[0];
+    }
+    return InvalidationTargets.resolve(clusterService.state(), rulesets);
+  }
+
+  private static Map<String, Pending> newBatch(
+      Invalidation invalidation, ActionListener<InvalidateResponse> listener) {
+    Map<String, Pending> batch = new LinkedHashMap<>();
+    batch.put(invalidation.getName(), new Pending(invalidation, listener));
+    return batch;
+  }
+
+  /** The newest invalidation queued for a ruleset, and everyone waiting on it. */
+  private static class Pending {
+
+    private Invalidation invalidation;
+    private final List<ActionListener<InvalidateResponse>> listeners = new ArrayList<>();
+
+    Pending(Invalidation invalidation, ActionListener<InvalidateResponse> listener) {
+      this.invalidation = invalidation;
+      if (listener != null) {
+        this.listeners.add(listener);
+      }
+    }
+
+    void merge(Invalidation other, ActionListener<InvalidateResponse> listener) {
+      if (!other.isOlderThan(invalidation)) {
+        invalidation = other;
+      }
+      if (listener != null) {
+        listeners.add(listener);
+      }
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package io.bonsai.plugins.synonyms;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.IndexShardRoutingTable;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Works out which nodes need to hear about changes to some rulesets: those holding shards of
+ * indices whose analysis settings reference them, and coordinating only nodes, which analyze
+ * queries for any index. The local node is always included, which also keeps the list from being
+ * empty, since an empty list would broadcast to every node.
+ *
+ * @author Dan Simpson
+ */
+final class InvalidationTargets {
+
+  private InvalidationTargets() {}
+
+  /**
+   * Resolve the nodes to send invalidations of the given rulesets to.
+   *
+   * @param state - the current cluster state
+   * @param rulesets - the names of the changed rulesets
+   * @return the ids of the nodes which need to hear about the changes
+   */
+  static String[] resolve(ClusterState state, Set<String> rulesets) {
+    Set<String> nodes = new LinkedHashSet<>();
+    nodes.add(state.nodes().getLocalNodeId());
+    for (DiscoveryNode node : state.nodes()) {
+      if (node.getRoles().isEmpty()) {
+        nodes.add(node.getId());
+      }
+    }
+
+    for (IndexMetadata index : state.metadata()) {
+      if (!references(index.getSettings(), rulesets)) {
+        continue;
+      }
+      IndexRoutingTable routing = state.routingTable().index(index.getIndex());
+      if (routing == null) {
+        continue;
+      }
+      for (IndexShardRoutingTable shard : routing) {
+        for (ShardRouting copy : shard) {
+          if (copy.currentNodeId() != null) {
+            nodes.add(copy.currentNodeId());
+          }
+          if (copy.relocatingNodeId() != null) {
+            nodes.add(copy.relocatingNodeId());
+          }
+        }
+      }
+    }
+    return nodes.toArray(new String[0]);
+  }
+
+  /**
+   * Whether an index defines a stored synonyms filter which uses any of the given rulesets.
+   *
+   * @param settings - the settings of the index
+   * @param rulesets - the names of the rulesets
+   */
+  static boolean references(Settings settings, Set<String> rulesets) {
+    for (Settings filter : settings.getGroups("index.analysis.filter").values()) {
+      if (!StoredSynonymsFilterFactory.TYPE.equals(filter.get("type"))) {
+        continue;
+      }
+      if (rulesets.contains(filter.get("name"))) {
+        return true;
+      }
+      for (String name : filter.getAsList("names")) {
+        if (rulesets.contains(name)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,146 @@
+package io.bonsai.plugins.synonyms;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.fst.FST;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Moves large compiled synonym FSTs off the heap. The FST is written to a file on the node's data
+ * path and read back through a memory mapped, off-heap store, so its bytes live in the page cache
+ * instead of the heap. Files only live as long as the process; whatever is left over from a
+ * previous run is removed the first time a map is offloaded.
+ *
+ * @author Dan Simpson
+ */
+class OffHeapSynonymMaps {
+
+  private static final Logger log = LogManager.getLogger(OffHeapSynonymMaps.class);
+
+  // Filters keep using a retired map until their next reset, so give them time to move on
+  private static final TimeValue RELEASE_DELAY = TimeValue.timeValueMinutes(1);
+
+  private final Path path;
+  private final long threshold;
+  private final ThreadPool threadPool;
+  private final AtomicLong counter = new AtomicLong();
+  private MMapDirectory directory;
+
+  /**
+   * @param path - the directory to write FSTs to
+   * @param threshold - FSTs using at least this many heap bytes are offloaded, or -1 to only
+   *     offload rulesets which ask for it
+   * @param threadPool - used to release retired maps after a delay
+   */
+  OffHeapSynonymMaps(Path path, long threshold, ThreadPool threadPool) {
+    this.path = path;
+    this.threshold = threshold;
+    this.threadPool = threadPool;
+  }
+
+  /**
+   * Whether a compiled map for a ruleset belongs off the heap. The ruleset's own off_heap flag
+   * wins over the size threshold.
+   */
+  public boolean shouldOffload(StoredSynonyms synonyms, SynonymMap map) {
+    if (map.fst == null) {
+      return false;
+    }
+    if (synonyms.getOffHeap() != null) {
+      return synonyms.getOffHeap();
+    }
+    return threshold >= 0 && map.fst.ramBytesUsed() >= threshold;
+  }
+
+  /**
+   * Write a compiled map to disk and load it back with its FST off the heap. The output words stay
+   * on the heap, as the synonym filter needs random access to them.
+   *
+   * @param map - the map compiled on the heap
+   * @return an equivalent map whose FST is memory mapped
+   * @throws IOException
+   */
+  public SynonymMap offload(SynonymMap map) throws IOException {
+    MMapDirectory directory = directory();
+    String file = "fst_" + counter.incrementAndGet();
+    try (IndexOutput out = directory.createOutput(file, IOContext.DEFAULT)) {
+      SynonymMaps.write(map, out);
+      CodecUtil.writeFooter(out);
+    }
+
+    IndexInput in = directory.openInput(file, IOContext.READ);
+    try {
+      SynonymMap loaded = SynonymMaps.read(in, true);
+      return new OffHeapSynonymMap(
+          loaded.fst, loaded.words, loaded.maxHorizontalContext, in, file);
+    } catch (IOException | RuntimeException error) {
+      IOUtils.closeWhileHandlingException(in);
+      IOUtils.deleteFilesIgnoringExceptions(directory, file);
+      throw error;
+    }
+  }
+
+  /**
+   * Release the file behind a map which is no longer used, once filters have had time to move to
+   * its replacement. Maps on the heap are left to the garbage collector.
+   */
+  public void release(SynonymMap map) {
+    if (map instanceof OffHeapSynonymMap) {
+      threadPool.schedule(
+          () -> ((OffHeapSynonymMap) map).close(), RELEASE_DELAY, ThreadPool.Names.GENERIC);
+    }
+  }
+
+  private synchronized MMapDirectory directory() throws IOException {
+    if (directory == null) {
+      Files.createDirectories(path);
+      MMapDirectory opened = new MMapDirectory(path);
+      IOUtils.deleteFilesIgnoringExceptions(opened, opened.listAll());
+      directory = opened;
+    }
+    return directory;
+  }
+
+  /** A synonym map whose FST reads from a memory mapped file, deleted once the map is closed. */
+  private class OffHeapSynonymMap extends SynonymMap implements Closeable {
+
+    private final IndexInput in;
+    private final String file;
+
+    OffHeapSynonymMap(
+        FST<BytesRef> fst,
+        BytesRefHash words,
+        int maxHorizontalContext,
+        IndexInput in,
+        String file) {
+      super(fst, words, maxHorizontalContext);
+      this.in = in;
+      this.file = file;
+    }
+
+    @Override
+    public void close() {
+      try {
+        in.close();
+        directory.deleteFile(file);
+      } catch (IOException error) {
+        log.warn("Failed to release off-heap synonym map " + file, error);
+      }
+    }
+  }
+}
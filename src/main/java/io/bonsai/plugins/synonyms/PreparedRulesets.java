@@ -0,0 +1,243 @@
+package io.bonsai.plugins.synonyms;
+
+import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.Invalidation;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * The node side of ruleset changes announced in two phases, see {@link
+ * InvalidationBatcher#activate}: rules are compiled and held when the change is prepared, and
+ * published when it is committed.
+ *
+ * @author Dan Simpson
+ */
+class PreparedRulesets {
+
+  private static final Logger log = LogManager.getLogger(PreparedRulesets.class);
+  // How long prepared rules wait for their commit before they are dropped
+  private static final TimeValue PREPARED_TTL = TimeValue.timeValueMinutes(1);
+
+  private final StoredSynonymsService service;
+  private final SynonymMapInterner interner;
+  private final ThreadPool threadPool;
+  // Rules prepared for each ruleset, oldest first, until their own version is committed
+  private final Map<String, List<Prepared>> prepared = new ConcurrentHashMap<>();
+
+  /**
+   * @param service - fetches, compiles and publishes the rules
+   * @param interner - settles the maps of prepared rules once they are published or dropped
+   * @param threadPool - schedules dropping rules which are never committed
+   */
+  PreparedRulesets(
+      StoredSynonymsService service, SynonymMapInterner interner, ThreadPool threadPool) {
+    this.service = service;
+    this.interner = interner;
+    this.threadPool = threadPool;
+  }
+
+  /**
+   * Compile a ruleset change announced in two phases and hold it until it is committed. Only full
+   * updates are prepared; deletes and patches are cheap enough to apply when committed.
+   *
+   * @param invalidation - the announced change
+   * @param listener - completed once the new rules are compiled, or found to be stale
+   */
+  void prepare(Invalidation invalidation, ActionListener<Void> listener) {
+    String name = invalidation.getName();
+    if (invalidation.isDeleted()
+        || invalidation.getPatch() != null
+        || service.ignores(name)
+        || service.isCurrent(name, invalidation.getSeqNo(), invalidation.getPrimaryTerm())) {
+      listener.onResponse(null);
+      return;
+    }
+
+    ActionListener<StoredSynonyms> fetched =
+        ActionListener.wrap(
+            (synonyms) -> {
+              if (synonyms == null) {
+                // Deleted since; the commit catches up
+                listener.onResponse(null);
+                return;
+              }
+              StoredSynonymsHolder holder = service.holder(name);
+              service.compileAll(
+                  holder,
+                  synonyms,
+                  ActionListener.wrap(
+                      (maps) -> {
+                        if (maps != null) {
+                          stage(new Prepared(holder, synonyms, maps));
+                        }
+                        listener.onResponse(null);
+                      },
+                      listener::onFailure));
+            },
+            listener::onFailure);
+
+    if (invalidation.getSource() == null) {
+      service.fetch(name, fetched);
+      return;
+    }
+    StoredSynonyms synonyms;
+    try {
+      synonyms =
+          StoredSynonymsXContent.parse(
+              BytesReference.toBytes(invalidation.getSource().uncompressed()));
+    } catch (Exception error) {
+      listener.onFailure(error);
+      return;
+    }
+    synonyms.setVersion(invalidation.getSeqNo(), invalidation.getPrimaryTerm());
+    fetched.onResponse(synonyms);
+  }
+
+  /**
+   * Hold prepared rules until their version is committed. Rules prepared for other versions of the
+   * same ruleset are kept alongside, since their commits may still arrive; rules which are never
+   * committed are dropped after a while.
+   */
+  private void stage(Prepared next) {
+    String name = next.holder.getName();
+    boolean[] duplicate = new boolean[1];
+    prepared.compute(
+        name,
+        (key, staged) -> {
+          List<Prepared> updated = staged == null ? new ArrayList<>() : new ArrayList<>(staged);
+          for (Prepared entry : updated) {
+            if (entry.is(next.seqNo(), next.primaryTerm())) {
+              duplicate[0] = true;
+              return staged;
+            }
+          }
+          updated.add(next);
+          updated.sort(Prepared.OLDEST_FIRST);
+          return updated;
+        });
+    if (duplicate[0]) {
+      interner.settle(next.maps.values());
+      return;
+    }
+
+    threadPool.schedule(
+        () -> {
+          if (unstage(name, next)) {
+            log.warn("Dropping rules for {} which were prepared but never committed", name);
+            interner.settle(next.maps.values());
+          }
+        },
+        PREPARED_TTL,
+        ThreadPool.Names.GENERIC);
+  }
+
+  /** Stop holding prepared rules, returning whether they were still held. */
+  private boolean unstage(String name, Prepared entry) {
+    boolean[] removed = new boolean[1];
+    prepared.computeIfPresent(
+        name,
+        (key, staged) -> {
+          List<Prepared> updated = new ArrayList<>(staged);
+          removed[0] = updated.remove(entry);
+          return updated.isEmpty() ? null : updated;
+        });
+    return removed[0];
+  }
+
+  /**
+   * Switch to rules prepared for a ruleset change. Swapping in compiled maps is a single compare
+   * and set. Only the rules prepared for exactly the committed version are published: rules
+   * prepared for older versions are dropped, and rules prepared for newer ones wait for their own
+   * commit. A node which didn't prepare the change, e.g. because it joined since or its prepare
+   * failed, catches up as it would for any other invalidation.
+   *
+   * @param invalidation - the announced change
+   * @param listener - completed once the new rules are active, or found to be stale
+   */
+  void commit(Invalidation invalidation, ActionListener<Void> listener) {
+    String name = invalidation.getName();
+    long seqNo = invalidation.getSeqNo();
+    long primaryTerm = invalidation.getPrimaryTerm();
+    Prepared[] committed = new Prepared[1];
+    List<Prepared> dropped = new ArrayList<>();
+    prepared.computeIfPresent(
+        name,
+        (key, staged) -> {
+          List<Prepared> newer = new ArrayList<>();
+          for (Prepared entry : staged) {
+            if (entry.is(seqNo, primaryTerm)) {
+              committed[0] = entry;
+            } else if (entry.isOlderThan(seqNo, primaryTerm)) {
+              dropped.add(entry);
+            } else {
+              newer.add(entry);
+            }
+          }
+          return newer.isEmpty() ? null : newer;
+        });
+    for (Prepared entry : dropped) {
+      interner.settle(entry.maps.values());
+    }
+
+    Prepared staged = committed[0];
+    if (staged == null) {
+      service.invalidate(invalidation, listener);
+      return;
+    }
+    if (!service.isHolder(staged.holder)) {
+      // The holder was dropped while the rules waited; compile for its replacement instead
+      interner.settle(staged.maps.values());
+      service.invalidate(invalidation, listener);
+      return;
+    }
+    service.publish(staged.holder, staged.synonyms, staged.maps);
+    listener.onResponse(null);
+  }
+
+  /** Rules compiled for a ruleset change which waits to be committed. */
+  private static final class Prepared {
+
+    static final Comparator<Prepared> OLDEST_FIRST =
+        Comparator.comparingLong(Prepared::primaryTerm).thenComparingLong(Prepared::seqNo);
+
+    private final StoredSynonymsHolder holder;
+    private final StoredSynonyms synonyms;
+    private final Map<String, SynonymMap> maps;
+
+    Prepared(StoredSynonymsHolder holder, StoredSynonyms synonyms, Map<String, SynonymMap> maps) {
+      this.holder = holder;
+      this.synonyms = synonyms;
+      this.maps = maps;
+    }
+
+    long seqNo() {
+      return synonyms.getSeqNo();
+    }
+
+    long primaryTerm() {
+      return synonyms.getPrimaryTerm();
+    }
+
+    /** Whether these rules are exactly the given version of the ruleset. */
+    boolean is(long seqNo, long primaryTerm) {
+      return synonyms.getSeqNo() == seqNo && synonyms.getPrimaryTerm() == primaryTerm;
+    }
+
+    /** Whether these rules are an older version of the ruleset than the given one. */
+    boolean isOlderThan(long seqNo, long primaryTerm) {
+      if (synonyms.getPrimaryTerm() != primaryTerm) {
+        return synonyms.getPrimaryTerm() < primaryTerm;
+      }
+      return synonyms.getSeqNo() < seqNo;
+    }
+  }
+}
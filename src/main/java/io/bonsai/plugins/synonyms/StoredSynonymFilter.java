@@ -1,67 +1,82 @@
 package io.bonsai.plugins.synonyms;
 
 import java.io.IOException;
-import java.util.List;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
 
 /**
  * A synonym filter which branches to either the original input, or a SynonymGraphFilter. In the
- * event that synonyms change at runtime, a new SynonymGraphFilter is generated with a new synonym
- * map, and the filter will do a swap when reset is called.
+ * event that synonyms change at runtime, the ruleset holder publishes a new snapshot, and the
+ * filter will build a new SynonymGraphFilter from the shared synonym map when reset is called. A
+ * map which is still being compiled only holds up analysis when the filter has no map for earlier
+ * rules; otherwise the filter keeps its previous delegate until the map is installed.
+ *
+ * <p>Token streams are confined to a single thread, so the delegate and the snapshot it was built
+ * from are plain fields. The only cross thread state is the holder snapshot, which is immutable
+ * and published atomically. When nothing changed, reset costs a single volatile read.
  *
  * @author Dan Simpson
  */
 public final class StoredSynonymFilter extends TokenFilter {
 
+  private final StoredSynonymsHolder holder;
+  private final String fingerprint;
+  private final Analyzer analyzer;
   private final boolean ignoreCase;
   private final TokenStream input;
   private TokenStream base;
-  private TokenStream next;
+  private StoredSynonymsHolder.Snapshot snapshot;
+  private SynonymMap map;
 
   protected StoredSynonymFilter(
-      StoredSynonymsService service,
-      String name,
+      StoredSynonymsHolder holder,
+      String fingerprint,
       Analyzer analyzer,
       TokenStream input,
       boolean ignoreCase) {
     super(input);
 
+    this.holder = holder;
+    this.fingerprint = fingerprint;
+    this.analyzer = analyzer;
     this.input = input;
     this.ignoreCase = ignoreCase;
 
-    // Listen for changes to the synonym rules
-    service.listen(
-        name,
-        this,
-        (rules) -> {
-          updateSynonymMap(analyzer, rules);
-        });
+    refresh();
+  }
 
-    // The callback above will invoke the callback immediately if synonyms are available
-    if (next != null) {
-      base = next;
-    } else {
-      base = input;
+  /** Swap the delegate if the holder has published a new snapshot since we last looked. */
+  private void refresh() {
+    StoredSynonymsHolder.Snapshot snapshot = holder.snapshot();
+    if (snapshot == this.snapshot) {
+      return;
     }
-  }
 
-  private void updateSynonymMap(Analyzer analyzer, List<String> rules) {
-    if (rules == null || rules.isEmpty()) {
-      next = input;
+    this.snapshot = snapshot;
+    if (snapshot.isEmpty()) {
+      base = input;
+      map = null;
       return;
     }
 
     try {
-      // We set next since this filter could be in use, in some unknown state.  Wait for
-      // the reset method to be called and do the swap there.
-      next =
-          new SynonymGraphFilter(
-              input, StoredSynonyms.parseSynonymMap(analyzer, rules), ignoreCase);
+      SynonymMap next = holder.synonymMap(snapshot, fingerprint, analyzer);
+      if (next == null) {
+        // The rules were removed while the map compiled
+        base = input;
+        map = null;
+      } else if (next != map) {
+        base = new SynonymGraphFilter(input, next, ignoreCase);
+        map = next;
+      }
     } catch (Throwable t) {
-      next = input;
+      // Keep serving the previous rules rather than silently dropping to the raw input
+      if (base == null) {
+        base = input;
+      }
     }
   }
 
@@ -79,9 +94,7 @@ public final class StoredSynonymFilter extends TokenFilter {
 
   /** Reset the delegated filter, optionally swapping it out if changes were detected. */
   public void reset() throws IOException {
-    if (next != null) {
-      base = next;
-    }
+    refresh();
     base.reset();
   }
 }
@@ -1,15 +1,32 @@
 package io.bonsai.plugins.synonyms;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.analysis.synonym.SolrSynonymParser;
 import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.UnicodeUtil;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.index.seqno.SequenceNumbers;
 import org.elasticsearch.rest.RestStatus;
 
 /**
@@ -19,8 +36,22 @@ import org.elasticsearch.rest.RestStatus;
  */
 public class StoredSynonyms {
 
+  private static final Logger log = LogManager.getLogger(StoredSynonyms.class);
+  private static final long STRING_SIZE =
+      RamUsageEstimator.shallowSizeOfInstance(String.class)
+          + RamUsageEstimator.NUM_BYTES_ARRAY_HEADER;
+
   private String name;
-  private List<String> rules = new ArrayList<>();
+  // Published rules are packed into a compressed block; exactly one of these is set at a time
+  private volatile List<String> rules = new ArrayList<>();
+  private volatile byte[] packedRules;
+  private volatile int ruleCount;
+  private volatile String contentHash;
+  private long seqNo = SequenceNumbers.UNASSIGNED_SEQ_NO;
+  private long primaryTerm = SequenceNumbers.UNASSIGNED_PRIMARY_TERM;
+  private Boolean offHeap;
+  private Map<String, byte[]> compiled = Collections.emptyMap();
+  private List<StoredSynonyms> history = Collections.emptyList();
 
   public String getName() {
     return name;
@@ -30,12 +61,193 @@ public class StoredSynonyms {
     this.name = name;
   }
 
+  /** The rules, unpacked into a new list on every call once they have been packed. */
   public List<String> getRules() {
-    return rules;
+    List<String> current = rules;
+    if (current != null) {
+      return current;
+    }
+    try {
+      return unpack(packedRules, ruleCount);
+    } catch (IOException error) {
+      throw new IllegalStateException("Corrupt packed rules for " + name, error);
+    }
   }
 
   public void setRules(List<String> synonyms) {
+    this.ruleCount = synonyms.size();
+    this.packedRules = null;
     this.rules = synonyms;
+    this.contentHash = null;
+  }
+
+  /** The hash of the rules, see {@link #contentHash(List)}, computed once and then remembered. */
+  public String getContentHash() {
+    String hash = contentHash;
+    if (hash == null) {
+      hash = contentHash(getRules());
+      contentHash = hash;
+    }
+    return hash;
+  }
+
+  /**
+   * Remember the hash of the rules, as read along with them. Rules from a client must be hashed
+   * with {@link #contentHash(List)} instead.
+   */
+  public void setContentHash(String contentHash) {
+    this.contentHash = contentHash;
+  }
+
+  /** Whether these rules and options are the same as those of another version of the ruleset. */
+  public boolean isSameContent(StoredSynonyms other) {
+    return getContentHash().equals(other.getContentHash())
+        && Objects.equals(offHeap, other.offHeap);
+  }
+
+  /** The number of rules, without unpacking them. */
+  public int getRuleCount() {
+    List<String> current = rules;
+    return current != null ? current.size() : ruleCount;
+  }
+
+  /** The size of the rules as UTF-8 text. */
+  public long getSourceBytes() {
+    long bytes = 0;
+    for (String rule : getRules()) {
+      bytes += UnicodeUtil.calcUTF16toUTF8Length(rule, 0, rule.length());
+    }
+    return bytes;
+  }
+
+  /** The size of the serialized maps compiled from these rules. */
+  public long getCompiledBytes() {
+    long bytes = 0;
+    for (byte[] map : compiled.values()) {
+      bytes += map.length;
+    }
+    return bytes;
+  }
+
+  /**
+   * Pack the rules into a single compressed block, rather than keeping many small strings on the
+   * heap once they are compiled. Should only be called before the rules are shared, since it
+   * changes their reported size.
+   */
+  public void packRules() {
+    List<String> current = rules;
+    if (current == null) {
+      return;
+    }
+    try {
+      this.ruleCount = current.size();
+      this.packedRules = pack(current);
+      this.rules = null;
+    } catch (IOException error) {
+      // Only possible if the JVM can't deflate; keep the plain rules
+      log.warn("Failed to pack rules for " + name, error);
+    }
+  }
+
+  /** An estimate of the heap used by the rules. */
+  public long ramBytesUsed() {
+    List<String> current = rules;
+    if (current == null) {
+      return RamUsageEstimator.sizeOf(packedRules);
+    }
+    long bytes =
+        RamUsageEstimator.alignObjectSize(
+            RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                + (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF * current.size());
+    for (String rule : current) {
+      // Assume the worst case of two bytes per char
+      bytes += STRING_SIZE + 2L * rule.length();
+    }
+    return bytes;
+  }
+
+  /** The sequence number of the stored document, or UNASSIGNED_SEQ_NO if not yet stored. */
+  public long getSeqNo() {
+    return seqNo;
+  }
+
+  public long getPrimaryTerm() {
+    return primaryTerm;
+  }
+
+  public void setVersion(long seqNo, long primaryTerm) {
+    this.seqNo = seqNo;
+    this.primaryTerm = primaryTerm;
+  }
+
+  /** Whether compiled maps must be kept off the heap, or null to decide by their size. */
+  public Boolean getOffHeap() {
+    return offHeap;
+  }
+
+  public void setOffHeap(Boolean offHeap) {
+    this.offHeap = offHeap;
+  }
+
+  /** Serialized maps compiled from these rules, keyed by analysis chain fingerprint. */
+  public Map<String, byte[]> getCompiled() {
+    return compiled;
+  }
+
+  public void setCompiled(Map<String, byte[]> compiled) {
+    this.compiled = compiled;
+  }
+
+  /**
+   * Earlier versions of the ruleset, newest first, each carrying the version it was stored at.
+   * Only read when the ruleset is written or rolled back.
+   */
+  public List<StoredSynonyms> getHistory() {
+    return history;
+  }
+
+  public void setHistory(List<StoredSynonyms> history) {
+    this.history = history;
+  }
+
+  private static byte[] pack(List<String> rules) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+      for (String rule : rules) {
+        byte[] utf8 = rule.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static List<String> unpack(byte[] packed, int count) throws IOException {
+    List<String> rules = new ArrayList<>(count);
+    try (DataInputStream in =
+        new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(packed)))) {
+      for (int i = 0; i < count; i++) {
+        byte[] utf8 = new byte[in.readInt()];
+        in.readFully(utf8);
+        rules.add(new String(utf8, StandardCharsets.UTF_8));
+      }
+    }
+    return rules;
+  }
+
+  /**
+   * Hash a list of rules, so identical rules can be recognised without comparing them in full.
+   *
+   * @param rules - the list of synonym rules
+   * @return a hex encoded SHA-256 of the rules, in order
+   */
+  public static String contentHash(List<String> rules) {
+    MessageDigest digest = MessageDigests.sha256();
+    for (String rule : rules) {
+      digest.update(rule.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+    }
+    return MessageDigests.toHexString(digest.digest());
   }
 
   /**
@@ -0,0 +1,198 @@
+package io.bonsai.plugins.synonyms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.StatusToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Model and NDJSON parser for bulk ruleset changes. Each line holds a single operation:
+ *
+ * <pre>
+ * {"upsert": {"name": "colors", "rules": ["red, crimson"]}}
+ * {"delete": {"name": "sizes"}}
+ * </pre>
+ *
+ * @author Dan Simpson
+ */
+public class StoredSynonymsBulk {
+
+  public enum Op {
+    UPSERT,
+    DELETE;
+
+    public String field() {
+      return name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  /** A single operation in a bulk request, along with its outcome once executed. */
+  public static class Item {
+
+    private final Op op;
+    private final StoredSynonyms synonyms;
+    private RestStatus status;
+    private String result;
+    private String error;
+
+    public Item(Op op, StoredSynonyms synonyms) {
+      this.op = op;
+      this.synonyms = synonyms;
+    }
+
+    public Op getOp() {
+      return op;
+    }
+
+    public StoredSynonyms getSynonyms() {
+      return synonyms;
+    }
+
+    public String getName() {
+      return synonyms.getName();
+    }
+
+    public boolean isFailed() {
+      return error != null;
+    }
+
+    public void succeed(RestStatus status, String result) {
+      this.status = status;
+      this.result = result;
+    }
+
+    public void fail(RestStatus status, String error) {
+      this.status = status;
+      this.error = error;
+    }
+  }
+
+  /** Per item results of a bulk request. */
+  public static class Response implements StatusToXContentObject {
+
+    private final List<Item> items;
+    private final long tookMillis;
+
+    public Response(List<Item> items, long tookMillis) {
+      this.items = items;
+      this.tookMillis = tookMillis;
+    }
+
+    public List<Item> getItems() {
+      return items;
+    }
+
+    public boolean hasErrors() {
+      return items.stream().anyMatch(Item::isFailed);
+    }
+
+    @Override
+    public RestStatus status() {
+      return RestStatus.OK;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+      builder.startObject();
+      builder.field("took", tookMillis);
+      builder.field("errors", hasErrors());
+      builder.startArray("items");
+      for (Item item : items) {
+        builder.startObject();
+        builder.startObject(item.op.field());
+        builder.field("name", item.getName());
+        builder.field("status", item.status.getStatus());
+        if (item.result != null) {
+          builder.field("result", item.result);
+        }
+        if (item.error != null) {
+          builder.field("error", item.error);
+        }
+        builder.endObject();
+        builder.endObject();
+      }
+      builder.endArray();
+      builder.endObject();
+      return builder;
+    }
+  }
+
+  /**
+   * Parse newline delimited bulk operations.
+   *
+   * @param content - the request body
+   * @return the operations, in request order
+   * @throws IOException
+   */
+  public static List<Item> parse(BytesReference content) throws IOException {
+    List<Item> items = new ArrayList<>();
+    int from = 0;
+    while (from < content.length()) {
+      int end = content.indexOf((byte) '\n', from);
+      if (end < 0) {
+        end = content.length();
+      }
+
+      BytesReference line = content.slice(from, end - from);
+      from = end + 1;
+      if (isBlank(line)) {
+        continue;
+      }
+
+      try (XContentParser parser =
+          JsonXContent.jsonXContent.createParser(
+              NamedXContentRegistry.EMPTY,
+              LoggingDeprecationHandler.INSTANCE,
+              BytesReference.toBytes(line))) {
+        items.add(parseItem(parser));
+      }
+    }
+    return items;
+  }
+
+  private static boolean isBlank(BytesReference line) {
+    for (int i = 0; i < line.length(); i++) {
+      if (!Character.isWhitespace(line.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Item parseItem(XContentParser parser) throws IOException {
+    if (parser.nextToken() != XContentParser.Token.START_OBJECT
+        || parser.nextToken() != XContentParser.Token.FIELD_NAME) {
+      throw new ParsingException(parser.getTokenLocation(), "expected an operation object");
+    }
+
+    Op op;
+    String field = parser.currentName();
+    if (Op.UPSERT.field().equals(field)) {
+      op = Op.UPSERT;
+    } else if (Op.DELETE.field().equals(field)) {
+      op = Op.DELETE;
+    } else {
+      throw new ParsingException(parser.getTokenLocation(), "unknown operation [" + field + "]");
+    }
+
+    parser.nextToken();
+    StoredSynonyms synonyms = StoredSynonymsXContent.parseClientSet(parser);
+    if (synonyms.getName() == null || synonyms.getName().isEmpty()) {
+      throw new ParsingException(parser.getTokenLocation(), "ruleset name is missing");
+    }
+
+    if (parser.nextToken() != XContentParser.Token.END_OBJECT) {
+      throw new ParsingException(parser.getTokenLocation(), "expected a single operation");
+    }
+    return new Item(op, synonyms);
+  }
+}
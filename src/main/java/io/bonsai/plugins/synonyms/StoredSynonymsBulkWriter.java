@@ -0,0 +1,299 @@
+package io.bonsai.plugins.synonyms;
+
+import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.Invalidation;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Executes bulk ruleset changes, see {@link StoredSynonymsBulk}: validating the upserts, writing
+ * every valid change in one request, and announcing them to the cluster in one more.
+ *
+ * @author Dan Simpson
+ */
+class StoredSynonymsBulkWriter {
+
+  private static final Logger log = LogManager.getLogger(StoredSynonymsBulkWriter.class);
+
+  private final StoredSynonymsService service;
+  private final Client client;
+  private final ThreadPool threadPool;
+  private final InvalidationBatcher batcher;
+  private final String indexName;
+
+  /**
+   * @param service - precompiles the upserts and prepares the synonyms index
+   * @param client - the node client
+   * @param threadPool - the thread pool holding the compile executor
+   * @param batcher - announces the changes to the cluster
+   * @param indexName - the synonyms index
+   */
+  StoredSynonymsBulkWriter(
+      StoredSynonymsService service,
+      Client client,
+      ThreadPool threadPool,
+      InvalidationBatcher batcher,
+      String indexName) {
+    this.service = service;
+    this.client = client;
+    this.threadPool = threadPool;
+    this.batcher = batcher;
+    this.indexName = indexName;
+  }
+
+  /**
+   * Apply many ruleset changes at once. Upserts are validated in parallel on the compile pool, all
+   * valid changes are written with a single bulk request and one refresh, and the cluster is
+   * invalidated with a single request.
+   *
+   * @param items - the operations to apply, in order
+   * @param listener - completed with per item results
+   */
+  public void bulk(
+      List<StoredSynonymsBulk.Item> items, ActionListener<StoredSynonymsBulk.Response> listener) {
+    long start = System.nanoTime();
+    ActionListener<Void> done =
+        ActionListener.wrap(
+            (written) -> {
+              listener.onResponse(
+                  new StoredSynonymsBulk.Response(
+                      items, TimeValue.nsecToMSec(System.nanoTime() - start)));
+            },
+            listener::onFailure);
+
+    validateAll(
+        items,
+        ActionListener.wrap(
+            (validated) -> {
+              writeAll(items, done);
+            },
+            listener::onFailure));
+  }
+
+  /**
+   * Validate and precompile the upserts of a bulk request on the compile pool, a few at a time so a
+   * large request doesn't overflow its queue. Invalid upserts are failed, the rest are written.
+   */
+  private void validateAll(List<StoredSynonymsBulk.Item> items, ActionListener<Void> listener) {
+    List<StoredSynonymsBulk.Item> upserts = new ArrayList<>();
+    for (StoredSynonymsBulk.Item item : items) {
+      if (item.getOp() == StoredSynonymsBulk.Op.UPSERT) {
+        upserts.add(item);
+      }
+    }
+
+    CompileBatch.run(
+        threadPool,
+        upserts,
+        (item, done) -> {
+          try {
+            StoredSynonyms.validate(item.getSynonyms());
+            item.getSynonyms()
+                .setContentHash(StoredSynonyms.contentHash(item.getSynonyms().getRules()));
+            service.compileLocalChains(item.getSynonyms());
+          } catch (Exception error) {
+            RestStatus status =
+                error instanceof StoredSynonymsException
+                    ? ((StoredSynonymsException) error).status()
+                    : RestStatus.INTERNAL_SERVER_ERROR;
+            item.fail(status, error.getMessage());
+          }
+          done.onResponse(null);
+        },
+        listener);
+  }
+
+  private void writeAll(List<StoredSynonymsBulk.Item> items, ActionListener<Void> listener) {
+    if (items.stream().allMatch(StoredSynonymsBulk.Item::isFailed)) {
+      listener.onResponse(null);
+      return;
+    }
+
+    service.createIndex(
+        ActionListener.wrap(
+            (created) -> {
+              readAll(
+                  items,
+                  ActionListener.wrap(
+                      (current) -> {
+                        writeAll(items, current, listener);
+                      },
+                      listener::onFailure));
+            },
+            listener::onFailure));
+  }
+
+  /**
+   * Read the stored versions of the rulesets which bulk upserts replace, so they can be kept in
+   * their history. Upserts of rulesets which can't be read are failed.
+   *
+   * @param items - the operations to apply
+   * @param listener - completed with the stored versions by name; new rulesets are absent
+   */
+  private void readAll(
+      List<StoredSynonymsBulk.Item> items,
+      ActionListener<Map<String, StoredSynonyms>> listener) {
+    MultiGetRequestBuilder request = client.prepareMultiGet();
+    FetchSourceContext source =
+        new FetchSourceContext(true, null, new String[] {StoredSynonymsService.COMPILED_FIELD});
+    for (StoredSynonymsBulk.Item item : items) {
+      if (!item.isFailed() && item.getOp() == StoredSynonymsBulk.Op.UPSERT) {
+        request.add(new MultiGetRequest.Item(indexName, item.getName()).fetchSourceContext(source));
+      }
+    }
+
+    if (request.request().getItems().isEmpty()) {
+      listener.onResponse(Collections.emptyMap());
+      return;
+    }
+
+    request.execute(
+        ActionListener.wrap(
+            (response) -> {
+              Map<String, StoredSynonyms> current = new HashMap<>();
+              Map<String, String> failed = new HashMap<>();
+              for (MultiGetItemResponse read : response.getResponses()) {
+                if (read.isFailed()) {
+                  failed.put(read.getId(), read.getFailure().getMessage());
+                  continue;
+                }
+                StoredSynonyms stored = StoredSynonymsService.parseCurrent(read.getResponse());
+                if (stored != null) {
+                  current.put(read.getId(), stored);
+                }
+              }
+
+              for (StoredSynonymsBulk.Item item : items) {
+                String failure = failed.get(item.getName());
+                if (failure != null && item.getOp() == StoredSynonymsBulk.Op.UPSERT) {
+                  item.fail(RestStatus.INTERNAL_SERVER_ERROR, failure);
+                }
+              }
+              listener.onResponse(current);
+            },
+            listener::onFailure));
+  }
+
+  private void writeAll(
+      List<StoredSynonymsBulk.Item> items,
+      Map<String, StoredSynonyms> current,
+      ActionListener<Void> listener)
+      throws IOException {
+    List<StoredSynonymsBulk.Item> valid = new ArrayList<>();
+    Set<String> changed = new HashSet<>();
+    for (StoredSynonymsBulk.Item item : items) {
+      if (item.isFailed()) {
+        continue;
+      }
+      // Unchanged rulesets are neither written nor invalidated, unless changed earlier in the bulk
+      StoredSynonyms replaced = current.get(item.getName());
+      if (item.getOp() == StoredSynonymsBulk.Op.UPSERT
+          && replaced != null
+          && !changed.contains(item.getName())
+          && replaced.isSameContent(item.getSynonyms())) {
+        item.succeed(RestStatus.OK, DocWriteResponse.Result.NOOP.getLowercase());
+        continue;
+      }
+      changed.add(item.getName());
+      valid.add(item);
+    }
+
+    if (valid.isEmpty()) {
+      listener.onResponse(null);
+      return;
+    }
+
+    // Writes aren't guarded, so a concurrent write may go missing from the history
+    BulkRequestBuilder bulk = client.prepareBulk().setRefreshPolicy(RefreshPolicy.IMMEDIATE);
+    for (StoredSynonymsBulk.Item item : valid) {
+      if (item.getOp() == StoredSynonymsBulk.Op.UPSERT) {
+        StoredSynonyms replaced = current.get(item.getName());
+        item.getSynonyms()
+            .setHistory(replaced == null ? Collections.emptyList() : service.nextHistory(replaced));
+        bulk.add(
+            client
+                .prepareIndex(indexName, StoredSynonymsService.DOC_TYPE, item.getName())
+                .setSource(
+                    StoredSynonymsXContent.buildDocument(
+                        item.getSynonyms(), XContentFactory.contentBuilder(XContentType.JSON))));
+      } else {
+        bulk.add(
+            client.prepareDelete(indexName, StoredSynonymsService.DOC_TYPE, item.getName()));
+      }
+    }
+
+    bulk.execute(
+        ActionListener.wrap(
+            (response) -> {
+              invalidateAll(valid, response, listener);
+            },
+            listener::onFailure));
+  }
+
+  private void invalidateAll(
+      List<StoredSynonymsBulk.Item> valid, BulkResponse response, ActionListener<Void> listener)
+      throws IOException {
+    List<Invalidation> invalidations = new ArrayList<>();
+    BulkItemResponse[] responses = response.getItems();
+    for (int i = 0; i < responses.length; i++) {
+      StoredSynonymsBulk.Item item = valid.get(i);
+      BulkItemResponse result = responses[i];
+      if (result.isFailed()) {
+        item.fail(result.status(), result.getFailureMessage());
+        continue;
+      }
+
+      DocWriteResponse written = result.getResponse();
+      item.succeed(written.status(), written.getResult().getLowercase());
+      if (item.getOp() == StoredSynonymsBulk.Op.UPSERT) {
+        invalidations.add(
+            service.updatedInvalidation(
+                item.getSynonyms(), written.getSeqNo(), written.getPrimaryTerm()));
+      } else {
+        invalidations.add(
+            Invalidation.deleted(item.getName(), written.getSeqNo(), written.getPrimaryTerm()));
+      }
+    }
+
+    if (invalidations.isEmpty()) {
+      listener.onResponse(null);
+      return;
+    }
+
+    batcher.invalidateAll(
+        invalidations,
+        ActionListener.wrap(
+            (invalidateResponse) -> {
+              log.info(
+                  "Refreshed synonym cache for {} rulesets on {} nodes {} failures",
+                  invalidations.size(),
+                  invalidateResponse.getNodes().size(),
+                  invalidateResponse.failures().size());
+              listener.onResponse(null);
+            },
+            listener::onFailure));
+  }
+}
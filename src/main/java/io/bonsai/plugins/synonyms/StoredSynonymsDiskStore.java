@@ -0,0 +1,150 @@
+package io.bonsai.plugins.synonyms;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+
+/**
+ * A checksummed copy of every cached ruleset on the node's data path, so a restarting node can
+ * apply stored synonyms before the synonyms index is searchable. The file is rewritten in full to
+ * a temporary name and renamed into place, so readers only ever see a complete copy.
+ *
+ * @author Dan Simpson
+ */
+class StoredSynonymsDiskStore {
+
+  private static final String CODEC = "stored_synonyms";
+  private static final int VERSION_START = 0;
+  private static final int VERSION_OFF_HEAP = 1;
+  private static final int VERSION_CURRENT = VERSION_OFF_HEAP;
+  private static final String FILE = "rulesets.dat";
+  private static final String TEMP_FILE = FILE + ".tmp";
+
+  private final Path path;
+
+  /** @param path - the directory holding the copy, created on first write */
+  StoredSynonymsDiskStore(Path path) {
+    this.path = path;
+  }
+
+  /** The rulesets read back from disk, along with the index they were loaded from. */
+  static class Contents {
+
+    private final String indexUuid;
+    private final List<StoredSynonyms> rulesets;
+
+    Contents(String indexUuid, List<StoredSynonyms> rulesets) {
+      this.indexUuid = indexUuid;
+      this.rulesets = rulesets;
+    }
+
+    /** The UUID of the synonyms index the rulesets came from, or null if unknown. */
+    public String getIndexUuid() {
+      return indexUuid;
+    }
+
+    public List<StoredSynonyms> getRulesets() {
+      return rulesets;
+    }
+  }
+
+  /**
+   * Read the copy on disk.
+   *
+   * @return the rulesets on disk, or empty contents if nothing was written yet
+   * @throws IOException if the copy can't be read, including a checksum mismatch
+   */
+  public Contents read() throws IOException {
+    if (!Files.exists(path.resolve(FILE))) {
+      return new Contents(null, Collections.emptyList());
+    }
+
+    try (Directory directory = FSDirectory.open(path);
+        IndexInput in = directory.openInput(FILE, IOContext.READ)) {
+      // Verify the whole file before trusting any of the lengths in it
+      CodecUtil.checksumEntireFile(in);
+      in.seek(0);
+
+      int version = CodecUtil.checkHeader(in, CODEC, VERSION_START, VERSION_CURRENT);
+      String indexUuid = in.readByte() == 1 ? in.readString() : null;
+      int count = in.readVInt();
+      List<StoredSynonyms> rulesets = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        StoredSynonyms synonyms = new StoredSynonyms();
+        synonyms.setName(in.readString());
+        synonyms.setVersion(in.readZLong(), in.readVLong());
+        int rules = in.readVInt();
+        List<String> lines = new ArrayList<>(rules);
+        for (int j = 0; j < rules; j++) {
+          lines.add(in.readString());
+        }
+        synonyms.setRules(lines);
+        if (version >= VERSION_OFF_HEAP) {
+          byte offHeap = in.readByte();
+          synonyms.setOffHeap(offHeap == 0 ? null : offHeap == 2);
+        }
+        rulesets.add(synonyms);
+      }
+
+      if (in.getFilePointer() != in.length() - CodecUtil.footerLength()) {
+        throw new CorruptIndexException("unexpected trailing data", in);
+      }
+      return new Contents(indexUuid, rulesets);
+    }
+  }
+
+  /**
+   * Replace the copy on disk.
+   *
+   * @param indexUuid - the UUID of the synonyms index the rulesets came from, or null
+   * @param rulesets - every ruleset to keep
+   * @throws IOException
+   */
+  public void write(String indexUuid, Collection<StoredSynonyms> rulesets) throws IOException {
+    Files.createDirectories(path);
+    try (Directory directory = FSDirectory.open(path)) {
+      try {
+        directory.deleteFile(TEMP_FILE);
+      } catch (NoSuchFileException missing) {
+        // Nothing left over from an interrupted write
+      }
+
+      try (IndexOutput out = directory.createOutput(TEMP_FILE, IOContext.DEFAULT)) {
+        CodecUtil.writeHeader(out, CODEC, VERSION_CURRENT);
+        out.writeByte((byte) (indexUuid == null ? 0 : 1));
+        if (indexUuid != null) {
+          out.writeString(indexUuid);
+        }
+        out.writeVInt(rulesets.size());
+        for (StoredSynonyms synonyms : rulesets) {
+          out.writeString(synonyms.getName());
+          out.writeZLong(synonyms.getSeqNo());
+          out.writeVLong(synonyms.getPrimaryTerm());
+          out.writeVInt(synonyms.getRules().size());
+          for (String rule : synonyms.getRules()) {
+            out.writeString(rule);
+          }
+          Boolean offHeap = synonyms.getOffHeap();
+          out.writeByte((byte) (offHeap == null ? 0 : offHeap ? 2 : 1));
+        }
+        CodecUtil.writeFooter(out);
+      }
+
+      directory.sync(Collections.singleton(TEMP_FILE));
+      directory.rename(TEMP_FILE, FILE);
+      directory.syncMetaData();
+    }
+  }
+}
@@ -1,9 +1,15 @@
 package io.bonsai.plugins.synonyms;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
+import org.elasticsearch.common.hash.MessageDigests;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
@@ -22,7 +28,13 @@ import org.elasticsearch.index.analysis.TokenizerFactory;
  */
 public class StoredSynonymsFilterFactory extends AbstractTokenFilterFactory {
 
+  /** The filter type these factories are registered under. */
+  public static final String TYPE = "stored_synonyms";
+
+  private static final Logger log = LogManager.getLogger(StoredSynonymsFilterFactory.class);
+
   private final String rulsetName;
+  private final List<String> rulesetNames;
   private final StoredSynonymsService service;
   private final Boolean ignoreCase;
   private final AnalysisMode analysisMode;
@@ -35,7 +47,13 @@ public class StoredSynonymsFilterFactory extends AbstractTokenFilterFactory {
       StoredSynonymsService service) {
     super(indexSettings, name, settings);
 
-    this.rulsetName = settings.get("name");
+    this.rulesetNames = settings.getAsList("names");
+    this.rulsetName =
+        rulesetNames.isEmpty() ? settings.get("name") : String.join(",", rulesetNames);
+    if (rulsetName == null) {
+      throw new IllegalArgumentException(
+          "stored_synonyms filter [" + name + "] requires either [name] or [names]");
+    }
     this.service = service;
     this.ignoreCase = settings.getAsBoolean("ignore_case", false);
     this.analysisMode = AnalysisMode.ALL;
@@ -61,7 +79,13 @@ public class StoredSynonymsFilterFactory extends AbstractTokenFilterFactory {
 
     final Analyzer analyzer =
         buildSynonymAnalyzer(tokenizer, charFilters, previousTokenFilters, allFilters);
+    final String fingerprint = fingerprint(tokenizer, charFilters, previousTokenFilters);
+    // Several rulesets are merged into a single map, so the chain makes one synonym pass
+    final StoredSynonymsHolder holder =
+        rulesetNames.isEmpty() ? service.holder(rulsetName) : service.composite(rulesetNames);
+    service.registerChain(getIndexSettings().getIndex(), holder, fingerprint, analyzer);
     final String name = name();
+    final AtomicBoolean warned = new AtomicBoolean(false);
 
     return new TokenFilterFactory() {
 
@@ -72,7 +96,14 @@ public class StoredSynonymsFilterFactory extends AbstractTokenFilterFactory {
 
       @Override
       public TokenStream create(TokenStream tokenStream) {
-        return new StoredSynonymFilter(service, rulsetName, analyzer, tokenStream, ignoreCase);
+        if (holder.snapshot().isEmpty() && warned.compareAndSet(false, true)) {
+          if (!isLoading()) {
+            log.warn("Stored synonyms [{}] do not exist; analyzing without them", rulsetName);
+          } else {
+            log.warn("Stored synonyms [{}] are still loading; analyzing without them", rulsetName);
+          }
+        }
+        return new StoredSynonymFilter(holder, fingerprint, analyzer, tokenStream, ignoreCase);
       }
 
       @Override
@@ -90,6 +121,18 @@ public class StoredSynonymsFilterFactory extends AbstractTokenFilterFactory {
     };
   }
 
+  private boolean isLoading() {
+    if (rulesetNames.isEmpty()) {
+      return service.isLoading(rulsetName);
+    }
+    for (String name : rulesetNames) {
+      if (service.isLoading(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   private Analyzer buildSynonymAnalyzer(
       TokenizerFactory tokenizer,
       List<CharFilterFactory> charFilters,
@@ -102,4 +145,35 @@ public class StoredSynonymsFilterFactory extends AbstractTokenFilterFactory {
             .map(TokenFilterFactory::getSynonymFilter)
             .toArray(TokenFilterFactory[]::new));
   }
+
+  /**
+   * Generate a stable fingerprint for the analysis chain built by buildSynonymAnalyzer. Components
+   * are identified by name and their index level settings, so equivalent chains in different
+   * indices share the same fingerprint, and therefore the same compiled synonym maps.
+   */
+  private String fingerprint(
+      TokenizerFactory tokenizer,
+      List<CharFilterFactory> charFilters,
+      List<TokenFilterFactory> tokenFilters) {
+    MessageDigest digest = MessageDigests.sha256();
+    update(digest, "tokenizer", tokenizer.name());
+    for (CharFilterFactory charFilter : charFilters) {
+      update(digest, "char_filter", charFilter.name());
+    }
+    for (TokenFilterFactory tokenFilter : tokenFilters) {
+      update(digest, "filter", tokenFilter.getSynonymFilter().name());
+    }
+    return MessageDigests.toHexString(digest.digest());
+  }
+
+  private void update(MessageDigest digest, String type, String name) {
+    Settings component =
+        getIndexSettings().getSettings().getAsSettings("index.analysis." + type + "." + name);
+    digest.update(type.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(name.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+    digest.update(component.toString().getBytes(StandardCharsets.UTF_8));
+    digest.update((byte) 0);
+  }
 }
@@ -0,0 +1,449 @@
+package io.bonsai.plugins.synonyms;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * A per-ruleset handle shared by every filter which references the ruleset. Updates replace an
+ * immutable snapshot and bump its generation; filters compare snapshots when they are reset and
+ * pull the new rules on their own, so an update costs the same no matter how many token streams
+ * are alive.
+ *
+ * <p>Maps are compiled before new rules are published, for every chain registered at the time.
+ * A chain whose map is missing, because it was registered later, its compile failed, or the rules
+ * were restored without maps, asks the {@link MapCompiler} for one and keeps using the map it had
+ * for the previous rules until the new one is installed. A chain which had no map for the previous
+ * rules has nothing to serve meanwhile, so its map is compiled on the calling thread instead.
+ *
+ * @author Dan Simpson
+ */
+public final class StoredSynonymsHolder {
+
+  private static final AtomicReferenceFieldUpdater<StoredSynonymsHolder, Snapshot> SNAPSHOT =
+      AtomicReferenceFieldUpdater.newUpdater(
+          StoredSynonymsHolder.class, Snapshot.class, "snapshot");
+
+  private final String name;
+  private final BiConsumer<Snapshot, Snapshot> retired;
+  private final MapCompiler compiler;
+  // The rules each chain has a map compiling for
+  private final Map<String, StoredSynonyms> compiling = new ConcurrentHashMap<>();
+  // Held while a chain's map is compiled on the calling thread, so it's only compiled once
+  private final Map<String, Object> compileLocks = new ConcurrentHashMap<>();
+  private final Map<String, Analyzer> chains = new ConcurrentHashMap<>();
+  private final Map<String, Integer> chainReferences = new HashMap<>();
+  private volatile long lastUsed = System.nanoTime();
+  private volatile Snapshot snapshot =
+      new Snapshot(
+          null,
+          0,
+          SequenceNumbers.UNASSIGNED_SEQ_NO,
+          SequenceNumbers.UNASSIGNED_PRIMARY_TERM,
+          Collections.emptyMap(),
+          Collections.emptyMap());
+
+  StoredSynonymsHolder(String name) {
+    this(name, (previous, next) -> {}, INLINE);
+  }
+
+  /**
+   * @param name - the name of the ruleset
+   * @param retired - called with each snapshot, and the one which replaced it
+   * @param compiler - compiles the maps which snapshots are missing
+   */
+  StoredSynonymsHolder(
+      String name, BiConsumer<Snapshot, Snapshot> retired, MapCompiler compiler) {
+    this.name = name;
+    this.retired = retired;
+    this.compiler = compiler;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** The current snapshot of the ruleset, read with a single volatile load. */
+  public Snapshot snapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Register an analysis chain which references this ruleset, so maps can be compiled for it ahead
+   * of publishing new rules.
+   *
+   * @param fingerprint - the fingerprint of the analysis chain which feeds the parser
+   * @param analyzer - the analyzer built from that chain
+   */
+  public void registerChain(String fingerprint, Analyzer analyzer) {
+    lastUsed = System.nanoTime();
+    synchronized (chainReferences) {
+      chains.put(fingerprint, analyzer);
+      chainReferences.merge(fingerprint, 1, Integer::sum);
+    }
+  }
+
+  /**
+   * Release a registration of an analysis chain. Once nothing references the chain, its maps are
+   * dropped from the current snapshot, and later rules are no longer compiled for it.
+   *
+   * @param fingerprint - the fingerprint of the analysis chain
+   */
+  void unregisterChain(String fingerprint) {
+    lastUsed = System.nanoTime();
+    synchronized (chainReferences) {
+      Integer references = chainReferences.get(fingerprint);
+      if (references == null) {
+        return;
+      }
+      if (references > 1) {
+        chainReferences.put(fingerprint, references - 1);
+        return;
+      }
+      chainReferences.remove(fingerprint);
+      chains.remove(fingerprint);
+      compileLocks.remove(fingerprint);
+    }
+
+    Snapshot current;
+    do {
+      current = snapshot;
+      if (!current.compiled.containsKey(fingerprint)
+          && !current.fallback.containsKey(fingerprint)) {
+        return;
+      }
+    } while (!swap(current, current.without(fingerprint)));
+  }
+
+  /**
+   * Fetch the map of a snapshot for an analysis chain. If the snapshot has none, one is requested
+   * from the compiler, and the map the chain used for the previous rules is served meanwhile. If
+   * there is no such map, the map is compiled on the calling thread, since text analyzed without
+   * the rules would be indexed without them.
+   *
+   * @param snapshot - a snapshot of this holder
+   * @param fingerprint - the fingerprint of the analysis chain which feeds the parser
+   * @param analyzer - the analyzer built from that chain
+   * @return the map, or null if the rules were removed while it was compiled
+   */
+  public SynonymMap synonymMap(Snapshot snapshot, String fingerprint, Analyzer analyzer) {
+    Snapshot current = snapshot;
+    while (true) {
+      SynonymMap map = current.compiled.get(fingerprint);
+      if (map != null || current.isEmpty()) {
+        return map;
+      }
+
+      SynonymMap previous = current.fallback.get(fingerprint);
+      if (previous != null) {
+        return request(current, fingerprint, analyzer, previous);
+      }
+
+      synchronized (compileLocks.computeIfAbsent(fingerprint, (key) -> new Object())) {
+        current = this.snapshot;
+        if (!current.isEmpty()
+            && !current.compiled.containsKey(fingerprint)
+            && !current.fallback.containsKey(fingerprint)) {
+          compiler.compileNow(this, current, fingerprint, analyzer);
+        }
+      }
+      // Installed, unless the rules were replaced meanwhile and the new ones need a map too
+      current = this.snapshot;
+    }
+  }
+
+  /** Request a map from the compiler, serving the previous one until it's installed. */
+  private SynonymMap request(
+      Snapshot snapshot, String fingerprint, Analyzer analyzer, SynonymMap previous) {
+    StoredSynonyms synonyms = snapshot.synonyms;
+    if (compiling.put(fingerprint, synonyms) != synonyms) {
+      try {
+        compiler.compile(this, snapshot, fingerprint, analyzer);
+      } catch (RuntimeException error) {
+        abandon(synonyms, fingerprint);
+        throw error;
+      }
+      // The compiler may have installed it already
+      Snapshot current = this.snapshot;
+      if (current.synonyms == synonyms && current.compiled.containsKey(fingerprint)) {
+        return current.compiled.get(fingerprint);
+      }
+    }
+    return previous;
+  }
+
+  /**
+   * Add a map requested by {@link #synonymMap} to the current snapshot, unless the rules it was
+   * compiled from were replaced since. Filters pick it up when they are next reset.
+   *
+   * @param synonyms - the rules the map was compiled from
+   * @param fingerprint - the fingerprint of the analysis chain
+   * @param map - the compiled map
+   * @return true if the map was installed
+   */
+  boolean install(StoredSynonyms synonyms, String fingerprint, SynonymMap map) {
+    try {
+      Snapshot current;
+      do {
+        current = snapshot;
+        if (current.synonyms != synonyms || current.compiled.containsKey(fingerprint)) {
+          return false;
+        }
+      } while (!swap(current, current.with(fingerprint, map)));
+      return true;
+    } finally {
+      compiling.remove(fingerprint, synonyms);
+    }
+  }
+
+  /**
+   * Give up on a map requested by {@link #synonymMap}. It isn't requested again for the same rules
+   * until a filter finds it missing from a later snapshot.
+   */
+  void abandon(StoredSynonyms synonyms, String fingerprint) {
+    compiling.remove(fingerprint, synonyms);
+  }
+
+  /** Whether any analysis chain on this node references this ruleset. */
+  boolean isReferenced() {
+    return !chains.isEmpty();
+  }
+
+  /** The {@link System#nanoTime} this ruleset was last registered, released or updated. */
+  long lastUsed() {
+    return lastUsed;
+  }
+
+  /** The analysis chains known to reference this ruleset, keyed by fingerprint. */
+  Map<String, Analyzer> chains() {
+    return Collections.unmodifiableMap(chains);
+  }
+
+  boolean update(StoredSynonyms synonyms) {
+    return update(synonyms, Collections.emptyMap());
+  }
+
+  /**
+   * Replace the rules for this ruleset. Rules older than the ones already held are ignored.
+   *
+   * @param synonyms - the new rules
+   * @param compiled - maps already compiled for the new rules, keyed by chain fingerprint
+   * @return true if the rules were published
+   */
+  boolean update(StoredSynonyms synonyms, Map<String, SynonymMap> compiled) {
+    return publish(synonyms, synonyms.getSeqNo(), synonyms.getPrimaryTerm(), compiled);
+  }
+
+  /**
+   * Clear the rules for this ruleset, recording the version of the removal so that older updates
+   * arriving late can't resurrect them. An unassigned version clears unconditionally, and resets
+   * the ordering, which is needed when the backing index itself goes away.
+   *
+   * @param seqNo - the sequence number of the delete, or UNASSIGNED_SEQ_NO
+   * @param primaryTerm - the primary term of the delete, or UNASSIGNED_PRIMARY_TERM
+   * @return true if the removal was published
+   */
+  boolean remove(long seqNo, long primaryTerm) {
+    return publish(null, seqNo, primaryTerm, Collections.emptyMap());
+  }
+
+  private boolean swap(Snapshot expected, Snapshot next) {
+    if (!SNAPSHOT.compareAndSet(this, expected, next)) {
+      return false;
+    }
+    retired.accept(expected, next);
+    return true;
+  }
+
+  /**
+   * Publish a new snapshot, unless the current one is already at or past the given version. The
+   * snapshot is fully constructed before it is published with a compare and set, so readers either
+   * see the previous generation or the complete new one, and generations never move backwards.
+   */
+  private boolean publish(
+      StoredSynonyms synonyms, long seqNo, long primaryTerm, Map<String, SynonymMap> compiled) {
+    Snapshot current;
+    Snapshot next;
+    do {
+      current = snapshot;
+      if (current.isAtLeast(seqNo, primaryTerm)) {
+        return false;
+      }
+      next =
+          new Snapshot(
+              synonyms,
+              current.generation + 1,
+              seqNo,
+              primaryTerm,
+              compiled,
+              synonyms == null ? Collections.emptyMap() : current.served(chains.keySet()));
+    } while (!SNAPSHOT.compareAndSet(this, current, next));
+    lastUsed = System.nanoTime();
+    retired.accept(current, next);
+    return true;
+  }
+
+  /** Compiles maps which snapshots are missing for an analysis chain. */
+  interface MapCompiler {
+
+    /**
+     * Compile the map of a snapshot for an analysis chain, without holding up the calling thread
+     * for long, and pass it to {@link #install} or {@link #abandon} once done.
+     */
+    void compile(
+        StoredSynonymsHolder holder, Snapshot snapshot, String fingerprint, Analyzer analyzer);
+
+    /**
+     * Compile the map of a snapshot for an analysis chain on the calling thread, and pass it to
+     * {@link #install} before returning. Failures are thrown rather than abandoned.
+     */
+    void compileNow(
+        StoredSynonymsHolder holder, Snapshot snapshot, String fingerprint, Analyzer analyzer);
+  }
+
+  /** Compiles every map on the calling thread, without any accounting. */
+  private static final MapCompiler INLINE =
+      new MapCompiler() {
+        @Override
+        public void compile(
+            StoredSynonymsHolder holder, Snapshot snapshot, String fingerprint, Analyzer analyzer) {
+          compileNow(holder, snapshot, fingerprint, analyzer);
+        }
+
+        @Override
+        public void compileNow(
+            StoredSynonymsHolder holder, Snapshot snapshot, String fingerprint, Analyzer analyzer) {
+          holder.install(
+              snapshot.synonyms,
+              fingerprint,
+              Snapshot.parse(analyzer, snapshot.synonyms.getRules()));
+        }
+      };
+
+  /** An immutable view of a ruleset at a given generation, along with its compiled maps. */
+  public static final class Snapshot {
+
+    private final StoredSynonyms synonyms;
+    private final long generation;
+    private final long seqNo;
+    private final long primaryTerm;
+    private final Map<String, SynonymMap> compiled;
+    // Maps of earlier rules, served to chains which have none for these rules yet
+    private final Map<String, SynonymMap> fallback;
+
+    Snapshot(
+        StoredSynonyms synonyms,
+        long generation,
+        long seqNo,
+        long primaryTerm,
+        Map<String, SynonymMap> compiled,
+        Map<String, SynonymMap> fallback) {
+      this.synonyms = synonyms;
+      this.generation = generation;
+      this.seqNo = seqNo;
+      this.primaryTerm = primaryTerm;
+      this.compiled = Collections.unmodifiableMap(new HashMap<>(compiled));
+      Map<String, SynonymMap> previous = new HashMap<>(fallback);
+      previous.keySet().removeAll(compiled.keySet());
+      this.fallback = Collections.unmodifiableMap(previous);
+    }
+
+    /** A copy of this snapshot at the same generation, without the maps for a chain. */
+    private Snapshot without(String fingerprint) {
+      Map<String, SynonymMap> maps = new HashMap<>(compiled);
+      maps.remove(fingerprint);
+      Map<String, SynonymMap> previous = new HashMap<>(fallback);
+      previous.remove(fingerprint);
+      return new Snapshot(synonyms, generation, seqNo, primaryTerm, maps, previous);
+    }
+
+    /** A copy of this snapshot at the same generation, with a map for a chain. */
+    private Snapshot with(String fingerprint, SynonymMap map) {
+      Map<String, SynonymMap> maps = new HashMap<>(compiled);
+      maps.put(fingerprint, map);
+      return new Snapshot(synonyms, generation, seqNo, primaryTerm, maps, fallback);
+    }
+
+    /**
+     * The map each registered chain is served from this snapshot, for rules which replace it. Maps
+     * of chains which were never registered, such as those of an _analyze request without an
+     * index, aren't carried over.
+     */
+    private Map<String, SynonymMap> served(Set<String> registered) {
+      Map<String, SynonymMap> maps = new HashMap<>(fallback);
+      maps.putAll(compiled);
+      maps.keySet().retainAll(registered);
+      return maps;
+    }
+
+    /** The rules at this generation, or null if the ruleset is absent. */
+    public StoredSynonyms synonyms() {
+      return synonyms;
+    }
+
+    public long generation() {
+      return generation;
+    }
+
+    public boolean isEmpty() {
+      return synonyms == null || synonyms.getRuleCount() == 0;
+    }
+
+    /** The sequence number of the document these rules came from, or UNASSIGNED_SEQ_NO. */
+    public long seqNo() {
+      return seqNo;
+    }
+
+    public long primaryTerm() {
+      return primaryTerm;
+    }
+
+    /** The maps compiled for this generation so far. */
+    Collection<SynonymMap> compiledMaps() {
+      return new ArrayList<>(compiled.values());
+    }
+
+    /** Every map this snapshot holds on to, including those of earlier rules. */
+    Collection<SynonymMap> heldMaps() {
+      List<SynonymMap> maps = new ArrayList<>(compiled.values());
+      maps.addAll(fallback.values());
+      return maps;
+    }
+
+    /**
+     * Whether this snapshot already reflects the document at the given version. Unassigned versions
+     * on either side never compare as current.
+     */
+    public boolean isAtLeast(long seqNo, long primaryTerm) {
+      if (seqNo == SequenceNumbers.UNASSIGNED_SEQ_NO
+          || this.seqNo == SequenceNumbers.UNASSIGNED_SEQ_NO) {
+        return false;
+      }
+      if (this.primaryTerm != primaryTerm) {
+        return this.primaryTerm > primaryTerm;
+      }
+      return this.seqNo >= seqNo;
+    }
+
+    private static SynonymMap parse(Analyzer analyzer, List<String> rules) {
+      try {
+        return StoredSynonyms.parseSynonymMap(analyzer, rules);
+      } catch (IOException | ParseException error) {
+        throw new StoredSynonymsException(error, RestStatus.UNPROCESSABLE_ENTITY);
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+package io.bonsai.plugins.synonyms;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
+
+/**
+ * Lists the rulesets in the synonyms index a page at a time, from the summaries stored alongside
+ * their rules.
+ *
+ * @author Dan Simpson
+ */
+class StoredSynonymsLister {
+
+  // The searchable copy of the name, which rulesets are listed by
+  private static final String INDEXED_NAME_FIELD = "name.indexed";
+
+  private final Client client;
+  private final String indexName;
+  private final Consumer<ActionListener<Boolean>> indexExists;
+
+  /**
+   * @param client - the node client
+   * @param indexName - the synonyms index
+   * @param indexExists - completes its listener with whether the synonyms index exists
+   */
+  StoredSynonymsLister(
+      Client client, String indexName, Consumer<ActionListener<Boolean>> indexExists) {
+    this.client = client;
+    this.indexName = indexName;
+    this.indexExists = indexExists;
+  }
+
+  /**
+   * List stored rulesets in name order, summarized by the metadata stored alongside their rules,
+   * which is read from doc values without touching the rules themselves. Pages beyond the result
+   * window of the index are reached by listing after the last name of the previous page, rather
+   * than from an offset. Listing never writes; rulesets stored before summaries existed are
+   * migrated by the elected master instead.
+   *
+   * @param prefix - only list rulesets whose names start with this, or null for all
+   * @param from - the number of rulesets to skip
+   * @param size - the number of rulesets to list
+   * @param after - only list rulesets named after this, or null to start from the beginning
+   * @param listener - completed with the page
+   */
+  public void list(
+      String prefix,
+      int from,
+      int size,
+      String after,
+      ActionListener<StoredSynonymsListing> listener) {
+    if (from != 0 && after != null) {
+      listener.onFailure(
+          new StoredSynonymsException(
+              "Rulesets are listed either from an offset or after a name, not both",
+              RestStatus.BAD_REQUEST));
+      return;
+    }
+
+    indexExists.accept(
+        ActionListener.wrap(
+            (exists) -> {
+              if (!exists) {
+                listener.onResponse(StoredSynonymsListing.empty());
+                return;
+              }
+              search(prefix, from, size, after, listener);
+            },
+            listener::onFailure));
+  }
+
+  private void search(
+      String prefix,
+      int from,
+      int size,
+      String after,
+      ActionListener<StoredSynonymsListing> listener) {
+    SearchRequestBuilder request =
+        client
+            .prepareSearch(indexName)
+            .setQuery(
+                prefix == null || prefix.isEmpty()
+                    ? QueryBuilders.matchAllQuery()
+                    : QueryBuilders.prefixQuery(INDEXED_NAME_FIELD, prefix))
+            .setFetchSource(false)
+            .addDocValueField(StoredSynonymsXContent.CONTENT_HASH_FIELD)
+            .addDocValueField(StoredSynonymsXContent.RULE_COUNT_FIELD)
+            .addDocValueField(StoredSynonymsXContent.SOURCE_BYTES_FIELD)
+            .addDocValueField(StoredSynonymsXContent.COMPILED_BYTES_FIELD)
+            .seqNoAndPrimaryTerm(true)
+            .setSize(size)
+            .addSort(INDEXED_NAME_FIELD, SortOrder.ASC)
+            .setTrackTotalHits(true);
+    if (after != null) {
+      request.searchAfter(new Object[] {after});
+    } else {
+      request.setFrom(from);
+    }
+
+    request.execute(
+        ActionListener.wrap(
+            (response) -> {
+              SearchHit[] hits = response.getHits().getHits();
+              List<StoredSynonymsListing.Summary> rulesets = new ArrayList<>(hits.length);
+              for (SearchHit hit : hits) {
+                DocumentField hash = hit.field(StoredSynonymsXContent.CONTENT_HASH_FIELD);
+                String contentHash = hash == null ? null : hash.getValue();
+                rulesets.add(
+                    new StoredSynonymsListing.Summary(
+                        hit.getId(),
+                        longValue(hit, StoredSynonymsXContent.RULE_COUNT_FIELD),
+                        contentHash,
+                        hit.getSeqNo(),
+                        hit.getPrimaryTerm(),
+                        longValue(hit, StoredSynonymsXContent.SOURCE_BYTES_FIELD),
+                        longValue(hit, StoredSynonymsXContent.COMPILED_BYTES_FIELD)));
+              }
+              String next = hits.length == size && size > 0 ? hits[hits.length - 1].getId() : null;
+              listener.onResponse(
+                  new StoredSynonymsListing(
+                      response.getHits().getTotalHits().value, rulesets, next));
+            },
+            listener::onFailure));
+  }
+
+  private static Long longValue(SearchHit hit, String field) {
+    DocumentField value = hit.field(field);
+    return value == null ? null : ((Number) value.getValue()).longValue();
+  }
+}
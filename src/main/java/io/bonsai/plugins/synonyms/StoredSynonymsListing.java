@@ -0,0 +1,138 @@
+package io.bonsai.plugins.synonyms;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.elasticsearch.common.xcontent.StatusToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * A page of stored rulesets in name order, each summarized by the metadata stored alongside its
+ * rules.
+ *
+ * @author Dan Simpson
+ */
+public class StoredSynonymsListing implements StatusToXContentObject {
+
+  private final long total;
+  private final List<Summary> rulesets;
+  private final String next;
+
+  /**
+   * @param total - the number of rulesets matching the listing, across all pages
+   * @param rulesets - the rulesets on this page
+   * @param next - the name to list after for the following page, or null if this is the last
+   */
+  public StoredSynonymsListing(long total, List<Summary> rulesets, String next) {
+    this.total = total;
+    this.rulesets = rulesets;
+    this.next = next;
+  }
+
+  /** An empty listing, for when nothing has been stored yet. */
+  public static StoredSynonymsListing empty() {
+    return new StoredSynonymsListing(0, Collections.emptyList(), null);
+  }
+
+  public long getTotal() {
+    return total;
+  }
+
+  public List<Summary> getRulesets() {
+    return rulesets;
+  }
+
+  public String getNext() {
+    return next;
+  }
+
+  @Override
+  public RestStatus status() {
+    return RestStatus.OK;
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    builder.startObject();
+    builder.field("total", total);
+    builder.startArray("rulesets");
+    for (Summary summary : rulesets) {
+      builder.startObject();
+      builder.field("name", summary.name);
+      builder.field("rule_count", summary.ruleCount);
+      builder.field("content_hash", summary.contentHash);
+      builder.field("_seq_no", summary.seqNo);
+      builder.field("_primary_term", summary.primaryTerm);
+      builder.field("source_bytes", summary.sourceBytes);
+      builder.field("compiled_bytes", summary.compiledBytes);
+      builder.endObject();
+    }
+    builder.endArray();
+    if (next != null) {
+      builder.field("next", next);
+    }
+    builder.endObject();
+    return builder;
+  }
+
+  /**
+   * The stored metadata of a single ruleset. Sizes are null for rulesets stored by an earlier
+   * version until they are summarized.
+   */
+  public static class Summary {
+
+    private final String name;
+    private final Long ruleCount;
+    private final String contentHash;
+    private final long seqNo;
+    private final long primaryTerm;
+    private final Long sourceBytes;
+    private final Long compiledBytes;
+
+    public Summary(
+        String name,
+        Long ruleCount,
+        String contentHash,
+        long seqNo,
+        long primaryTerm,
+        Long sourceBytes,
+        Long compiledBytes) {
+      this.name = name;
+      this.ruleCount = ruleCount;
+      this.contentHash = contentHash;
+      this.seqNo = seqNo;
+      this.primaryTerm = primaryTerm;
+      this.sourceBytes = sourceBytes;
+      this.compiledBytes = compiledBytes;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public Long getRuleCount() {
+      return ruleCount;
+    }
+
+    public String getContentHash() {
+      return contentHash;
+    }
+
+    public long getSeqNo() {
+      return seqNo;
+    }
+
+    public long getPrimaryTerm() {
+      return primaryTerm;
+    }
+
+    public Long getSourceBytes() {
+      return sourceBytes;
+    }
+
+    public Long getCompiledBytes() {
+      return compiledBytes;
+    }
+  }
+}
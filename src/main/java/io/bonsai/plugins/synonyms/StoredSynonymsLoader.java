@@ -0,0 +1,169 @@
+package io.bonsai.plugins.synonyms;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.FieldSortBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.elasticsearch.threadpool.ThreadPool;
+
+/**
+ * Streams rulesets out of the synonyms index a page at a time with a scroll, parsing and compiling
+ * each page in parallel on the compile pool before moving on to the next one. A ruleset which the
+ * sink fails to take, or the pool keeps rejecting, fails the load rather than going missing.
+ *
+ * @author Dan Simpson
+ */
+class StoredSynonymsLoader {
+
+  private static final Logger log = LogManager.getLogger(StoredSynonymsLoader.class);
+  private static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+  private final Client client;
+  private final ThreadPool threadPool;
+  private final String indexName;
+  private final int pageSize;
+
+  /**
+   * @param client - the node client
+   * @param threadPool - the thread pool holding the compile executor
+   * @param indexName - the synonyms index
+   * @param pageSize - the number of rulesets to fetch per page
+   */
+  StoredSynonymsLoader(Client client, ThreadPool threadPool, String indexName, int pageSize) {
+    this.client = client;
+    this.threadPool = threadPool;
+    this.indexName = indexName;
+    this.pageSize = pageSize;
+  }
+
+  /**
+   * Load every ruleset matching a query.
+   *
+   * @param query - selects the rulesets to load
+   * @param sink - receives each parsed ruleset, completing its listener once it is compiled; a
+   *     failure fails the whole load
+   * @param listener - completed with the number of rulesets loaded
+   */
+  public void load(
+      QueryBuilder query,
+      BiConsumer<StoredSynonyms, ActionListener<Void>> sink,
+      ActionListener<Long> listener) {
+    new Run(sink, listener).start(query);
+  }
+
+  /** The state of a single load, from the first page to the cleared scroll. */
+  private final class Run {
+
+    private final BiConsumer<StoredSynonyms, ActionListener<Void>> sink;
+    private final ActionListener<Long> listener;
+    private final long started = System.nanoTime();
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private long total = -1;
+
+    Run(BiConsumer<StoredSynonyms, ActionListener<Void>> sink, ActionListener<Long> listener) {
+      this.sink = sink;
+      this.listener = listener;
+    }
+
+    void start(QueryBuilder query) {
+      client
+          .prepareSearch(indexName)
+          .setQuery(query)
+          .setFetchSource(null, StoredSynonymsXContent.HISTORY_FIELD)
+          .setScroll(KEEP_ALIVE)
+          .setSize(pageSize)
+          .addSort(FieldSortBuilder.DOC_FIELD_NAME, SortOrder.ASC)
+          .seqNoAndPrimaryTerm(true)
+          .setTrackTotalHits(true)
+          .execute(ActionListener.wrap(this::onPage, listener::onFailure));
+    }
+
+    private void onPage(SearchResponse response) {
+      String scrollId = response.getScrollId();
+      SearchHit[] hits = response.getHits().getHits();
+      if (total < 0 && response.getHits().getTotalHits() != null) {
+        total = response.getHits().getTotalHits().value;
+      }
+
+      if (hits.length == 0) {
+        finish(scrollId);
+        return;
+      }
+
+      // A page waits for its rulesets to compile, but never floods the compile pool with them
+      CompileBatch.run(
+          threadPool,
+          Arrays.asList(hits),
+          (hit, done) -> {
+            StoredSynonyms synonyms;
+            try {
+              synonyms = StoredSynonymsXContent.parse(BytesReference.toBytes(hit.getSourceRef()));
+            } catch (Exception error) {
+              // Loading it again wouldn't help; it is fixed by storing the ruleset again
+              log.error("Cache load failure for " + hit.getId(), error);
+              failed.incrementAndGet();
+              done.onResponse(null);
+              return;
+            }
+            synonyms.setVersion(hit.getSeqNo(), hit.getPrimaryTerm());
+            sink.accept(
+                synonyms,
+                ActionListener.wrap(
+                    (compiled) -> {
+                      loaded.incrementAndGet();
+                      done.onResponse(null);
+                    },
+                    done::onFailure));
+          },
+          ActionListener.wrap(
+              (results) -> {
+                log.debug(
+                    "Loaded {}/{} rulesets in {}",
+                    loaded.get(),
+                    total,
+                    TimeValue.timeValueNanos(System.nanoTime() - started));
+                next(scrollId);
+              },
+              (error) -> fail(scrollId, error)));
+    }
+
+    private void next(String scrollId) {
+      client
+          .prepareSearchScroll(scrollId)
+          .setScroll(KEEP_ALIVE)
+          .execute(ActionListener.wrap(this::onPage, (error) -> fail(scrollId, error)));
+    }
+
+    private void finish(String scrollId) {
+      clear(scrollId);
+      log.info(
+          "Loaded {} rulesets ({} failed) in {}",
+          loaded.get(),
+          failed.get(),
+          TimeValue.timeValueNanos(System.nanoTime() - started));
+      listener.onResponse(loaded.get());
+    }
+
+    private void fail(String scrollId, Exception error) {
+      clear(scrollId);
+      listener.onFailure(error);
+    }
+
+    private void clear(String scrollId) {
+      if (scrollId != null) {
+        client.prepareClearScroll().addScrollId(scrollId).execute(ActionListener.wrap(() -> {}));
+      }
+    }
+  }
+}
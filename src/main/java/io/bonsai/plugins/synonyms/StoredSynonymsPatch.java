@@ -0,0 +1,132 @@
+package io.bonsai.plugins.synonyms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+/**
+ * A change to the rules of a ruleset, so a large ruleset can be edited without sending it in full:
+ *
+ * <pre>
+ * {"add": ["tv, television"], "remove": ["laptop, notebook"]}
+ * </pre>
+ *
+ * Removed rules are matched exactly, ignoring surrounding whitespace. Added rules which are already
+ * present are ignored.
+ *
+ * @author Dan Simpson
+ */
+public class StoredSynonymsPatch implements Writeable {
+
+  private static final String ADD_FIELD = "add";
+  private static final String REMOVE_FIELD = "remove";
+
+  private final List<String> add;
+  private final List<String> remove;
+
+  public StoredSynonymsPatch(List<String> add, List<String> remove) {
+    this.add = add;
+    this.remove = remove;
+  }
+
+  public StoredSynonymsPatch(StreamInput in) throws IOException {
+    this.add = in.readStringList();
+    this.remove = in.readStringList();
+  }
+
+  @Override
+  public void writeTo(StreamOutput out) throws IOException {
+    out.writeStringCollection(add);
+    out.writeStringCollection(remove);
+  }
+
+  public List<String> getAdd() {
+    return add;
+  }
+
+  public List<String> getRemove() {
+    return remove;
+  }
+
+  public boolean isEmpty() {
+    return add.isEmpty() && remove.isEmpty();
+  }
+
+  /**
+   * Apply this patch to a list of rules.
+   *
+   * @param rules - the current rules, left untouched
+   * @return the patched rules, in their original order followed by the additions
+   */
+  public List<String> apply(List<String> rules) {
+    Set<String> removed = new HashSet<>();
+    for (String rule : remove) {
+      removed.add(rule.trim());
+    }
+
+    Set<String> patched = new LinkedHashSet<>();
+    for (String rule : rules) {
+      if (!removed.contains(rule.trim())) {
+        patched.add(rule);
+      }
+    }
+
+    Set<String> present = new HashSet<>();
+    for (String rule : patched) {
+      present.add(rule.trim());
+    }
+    for (String rule : add) {
+      if (present.add(rule.trim())) {
+        patched.add(rule);
+      }
+    }
+    return new ArrayList<>(patched);
+  }
+
+  public static StoredSynonymsPatch parse(XContentParser parser) throws IOException {
+    List<String> add = Collections.emptyList();
+    List<String> remove = Collections.emptyList();
+
+    if (parser.currentToken() == null) {
+      parser.nextToken();
+    }
+    if (parser.currentToken() != XContentParser.Token.START_OBJECT) {
+      throw new ParsingException(parser.getTokenLocation(), "current token must be a start object");
+    }
+
+    String fieldName = null;
+    XContentParser.Token token;
+    while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+      if (token == XContentParser.Token.FIELD_NAME) {
+        fieldName = parser.currentName();
+      } else if (token == XContentParser.Token.START_ARRAY && ADD_FIELD.equals(fieldName)) {
+        add = parseStringArray(parser);
+      } else if (token == XContentParser.Token.START_ARRAY && REMOVE_FIELD.equals(fieldName)) {
+        remove = parseStringArray(parser);
+      } else {
+        throw new ParsingException(
+            parser.getTokenLocation(),
+            "unexpected token [" + token + "] for [" + fieldName + "]");
+      }
+    }
+
+    return new StoredSynonymsPatch(add, remove);
+  }
+
+  private static List<String> parseStringArray(XContentParser parser) throws IOException {
+    List<String> items = new ArrayList<>();
+    while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+      items.add(parser.text());
+    }
+    return items;
+  }
+}
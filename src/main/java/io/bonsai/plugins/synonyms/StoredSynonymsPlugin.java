@@ -9,12 +9,18 @@
 package io.bonsai.plugins.synonyms;
 
 import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.InvalidateAction;
+import io.bonsai.plugins.synonyms.rest.RestSynonymsBulkAction;
 import io.bonsai.plugins.synonyms.rest.RestSynonymsDeleteAction;
 import io.bonsai.plugins.synonyms.rest.RestSynonymsGetAction;
+import io.bonsai.plugins.synonyms.rest.RestSynonymsListAction;
+import io.bonsai.plugins.synonyms.rest.RestSynonymsPatchAction;
 import io.bonsai.plugins.synonyms.rest.RestSynonymsPutAction;
+import io.bonsai.plugins.synonyms.rest.RestSynonymsRollbackAction;
+import io.bonsai.plugins.synonyms.rest.RestSynonymsStatsAction;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -25,23 +31,36 @@ import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.node.DiscoveryNodes;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
 import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
 import org.elasticsearch.common.settings.ClusterSettings;
 import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexModule;
+import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.index.shard.IndexEventListener;
 import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.indices.breaker.BreakerSettings;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
 import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.AnalysisPlugin;
+import org.elasticsearch.plugins.CircuitBreakerPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.repositories.RepositoriesService;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.watcher.ResourceWatcherService;
 
@@ -50,9 +69,11 @@ import org.elasticsearch.watcher.ResourceWatcherService;
  *
  * @author Dan Simpson
  */
-public class StoredSynonymsPlugin extends Plugin implements AnalysisPlugin, ActionPlugin {
+public class StoredSynonymsPlugin extends Plugin
+    implements AnalysisPlugin, ActionPlugin, CircuitBreakerPlugin {
 
   private StoredSynonymsService service;
+  private CircuitBreaker breaker;
 
   @Override
   public Collection<Object> createComponents(
@@ -69,7 +90,15 @@ public class StoredSynonymsPlugin extends Plugin implements AnalysisPlugin, Acti
       Supplier<RepositoriesService> repositoriesServiceSupplier) {
 
     // Set up the synonym service
-    service = new StoredSynonymsService(client, clusterService, ".stored_synonyms");
+    service =
+        new StoredSynonymsService(
+            environment.settings(),
+            client,
+            clusterService,
+            threadPool,
+            nodeEnvironment,
+            breaker != null ? breaker : new NoopCircuitBreaker(StoredSynonymsService.BREAKER),
+            ".stored_synonyms");
 
     List<Object> components = new ArrayList<>();
     components.add(service);
@@ -77,15 +106,81 @@ public class StoredSynonymsPlugin extends Plugin implements AnalysisPlugin, Acti
     return components;
   }
 
+  /**
+   * A dedicated breaker for cached rules and compiled maps, limited with
+   * stored_synonyms.breaker.limit
+   */
+  @Override
+  public BreakerSettings getCircuitBreaker(Settings settings) {
+    return new BreakerSettings(
+        StoredSynonymsService.BREAKER,
+        StoredSynonymsService.BREAKER_LIMIT.get(settings).getBytes(),
+        1.0,
+        CircuitBreaker.Type.MEMORY,
+        CircuitBreaker.Durability.PERMANENT);
+  }
+
+  @Override
+  public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    this.breaker = circuitBreaker;
+  }
+
+  /** Release the analysis chains of indices removed from this node, along with their maps. */
+  @Override
+  public void onIndexModule(IndexModule indexModule) {
+    indexModule.addIndexEventListener(
+        new IndexEventListener() {
+
+          @Override
+          public void afterIndexRemoved(
+              Index index, IndexSettings indexSettings, IndexRemovalReason reason) {
+            service.releaseChains(index);
+          }
+        });
+  }
+
+  @Override
+  public List<Setting<?>> getSettings() {
+    return Arrays.asList(
+        StoredSynonymsService.MAX_PAYLOAD_SIZE,
+        StoredSynonymsService.BATCH_WINDOW,
+        StoredSynonymsService.TARGETED_INVALIDATION,
+        StoredSynonymsService.LOAD_PAGE_SIZE,
+        StoredSynonymsService.LOAD_LAZY,
+        StoredSynonymsService.DISK_STORE_ENABLED,
+        StoredSynonymsService.OFF_HEAP_THRESHOLD,
+        StoredSynonymsService.BREAKER_LIMIT,
+        StoredSynonymsService.HISTORY_SIZE,
+        StoredSynonymsService.HISTORY_WARM_LIMIT);
+  }
+
+  /**
+   * A bounded pool for compiling synonym maps, sized with thread_pool.stored_synonyms_compile.size
+   * and thread_pool.stored_synonyms_compile.queue_size
+   */
+  @Override
+  public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+    int processors = EsExecutors.allocatedProcessors(settings);
+    return Collections.singletonList(
+        new FixedExecutorBuilder(
+            settings,
+            StoredSynonymsService.COMPILE_THREAD_POOL,
+            Math.max(1, (processors + 1) / 2),
+            1000,
+            "thread_pool." + StoredSynonymsService.COMPILE_THREAD_POOL));
+  }
+
   @Override
   public Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> getTokenFilters() {
     Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> extra = new HashMap<>();
+    // Every index builds the filters which don't require settings, and this one needs a ruleset
     extra.put(
-        "stored_synonyms",
-        (indexSettings, environment, name, settings) -> {
-          return new StoredSynonymsFilterFactory(
-              indexSettings, environment, name, settings, service);
-        });
+        StoredSynonymsFilterFactory.TYPE,
+        AnalysisPlugin.requiresAnalysisSettings(
+            (indexSettings, environment, name, settings) -> {
+              return new StoredSynonymsFilterFactory(
+                  indexSettings, environment, name, settings, service);
+            }));
     return extra;
   }
 
@@ -101,8 +196,13 @@ public class StoredSynonymsPlugin extends Plugin implements AnalysisPlugin, Acti
     return Arrays.asList(
         new RestHandler[] {
           new RestSynonymsGetAction(settings, restController, service),
+          new RestSynonymsListAction(settings, restController, service),
           new RestSynonymsPutAction(settings, restController, service),
-          new RestSynonymsDeleteAction(settings, restController, service)
+          new RestSynonymsDeleteAction(settings, restController, service),
+          new RestSynonymsBulkAction(settings, restController, service),
+          new RestSynonymsPatchAction(settings, restController, service),
+          new RestSynonymsRollbackAction(settings, restController, service),
+          new RestSynonymsStatsAction(settings, restController, service)
         });
   }
 
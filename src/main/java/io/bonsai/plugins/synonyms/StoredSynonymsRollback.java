@@ -0,0 +1,120 @@
+package io.bonsai.plugins.synonyms;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Restores earlier versions of rulesets from the history stored alongside their rules, writing
+ * them as a new version which is activated like any other.
+ *
+ * @author Dan Simpson
+ */
+class StoredSynonymsRollback {
+
+  private static final Logger log = LogManager.getLogger(StoredSynonymsRollback.class);
+
+  private final StoredSynonymsService service;
+  private final Client client;
+  private final String indexName;
+
+  /**
+   * @param service - writes and activates the restored versions
+   * @param client - the node client
+   * @param indexName - the synonyms index
+   */
+  StoredSynonymsRollback(StoredSynonymsService service, Client client, String indexName) {
+    this.service = service;
+    this.client = client;
+    this.indexName = indexName;
+  }
+
+  /**
+   * Restore an earlier version of a ruleset from its history. The current rules take its place in
+   * the history, so rolling back again restores them. Nodes keep the maps of the rules they last
+   * switched away from, so rolling back the latest change doesn't compile anything.
+   *
+   * @param name - the name of the ruleset
+   * @param seqNo - the sequence number the version to restore was stored at, or UNASSIGNED_SEQ_NO
+   *     for the version before the current one
+   * @param listener - completed with the write, and the nodes which failed to prepare the rules
+   */
+  public void rollback(
+      String name, long seqNo, ActionListener<StoredSynonymsStoreResponse> listener) {
+    service.ensureMappingIfExists(
+        ActionListener.wrap(
+            (mapped) -> {
+              rollback(name, seqNo, StoredSynonymsService.MAX_WRITE_ATTEMPTS, listener);
+            },
+            listener::onFailure));
+  }
+
+  private void rollback(
+      String name,
+      long seqNo,
+      int attempts,
+      ActionListener<StoredSynonymsStoreResponse> listener) {
+    client
+        .prepareGet(indexName, StoredSynonymsService.DOC_TYPE, name)
+        .setFetchSource(null, StoredSynonymsService.COMPILED_FIELD)
+        .execute(
+            ActionListener.wrap(
+                (response) -> {
+                  StoredSynonyms current = StoredSynonymsService.parseCurrent(response);
+                  if (current == null) {
+                    listener.onFailure(
+                        new StoredSynonymsException(
+                            String.format("StoredSynonym set not found with name %s", name),
+                            RestStatus.NOT_FOUND));
+                    return;
+                  }
+
+                  StoredSynonyms target = null;
+                  for (StoredSynonyms version : current.getHistory()) {
+                    if (seqNo == SequenceNumbers.UNASSIGNED_SEQ_NO || version.getSeqNo() == seqNo) {
+                      target = version;
+                      break;
+                    }
+                  }
+                  if (target == null) {
+                    listener.onFailure(
+                        new StoredSynonymsException(
+                            String.format("No earlier version of %s to roll back to", name),
+                            RestStatus.NOT_FOUND));
+                    return;
+                  }
+
+                  List<StoredSynonyms> earlier = new ArrayList<>(current.getHistory());
+                  earlier.remove(target);
+                  current.setHistory(earlier);
+
+                  // Not compiled here; nodes find the maps of the rules they replaced interned
+                  StoredSynonyms restored = new StoredSynonyms();
+                  restored.setName(name);
+                  restored.setRules(target.getRules());
+                  restored.setOffHeap(target.getOffHeap());
+                  log.info("Rolling back {} to the version at seq_no {}", name, target.getSeqNo());
+                  service.writeVersion(
+                      restored,
+                      current,
+                      ActionListener.wrap(
+                          (indexResponse) -> {
+                            service.activate(restored, indexResponse, listener);
+                          },
+                          (error) -> {
+                            if (attempts > 1 && StoredSynonymsService.isConflict(error)) {
+                              log.debug("Retrying rollback of {} after a concurrent write", name);
+                              rollback(name, seqNo, attempts - 1, listener);
+                            } else {
+                              listener.onFailure(error);
+                            }
+                          }));
+                },
+                listener::onFailure));
+  }
+}
@@ -1,100 +1,253 @@
 package io.bonsai.plugins.synonyms;
 
-import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.InvalidateAction;
-import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.InvalidateResponse;
+import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.Invalidation;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.WeakHashMap;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicReference;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.ActionListener;
-import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequest;
-import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
 import org.elasticsearch.action.admin.indices.create.CreateIndexResponse;
 import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.index.IndexResponse;
-import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.support.ActiveShardCount;
+import org.elasticsearch.action.support.GroupedActionListener;
 import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterState;
 import org.elasticsearch.cluster.ClusterStateListener;
-import org.elasticsearch.cluster.health.ClusterHealthStatus;
 import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.bytes.BytesReference;
-import org.elasticsearch.common.component.LifecycleListener;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.compress.CompressedXContent;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
 import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.ToXContentObject;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
-import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.gateway.GatewayService;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.seqno.SequenceNumbers;
 import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.threadpool.ThreadPool;
 
 /**
  * A service class responsible for handling operations from the HTTP side, as well as the internal
  * transport. Additionally, caches are stored here, and pulled from other places in the application.
+ * Listing, bulk changes, rollbacks and two phase activations are handed to their own classes.
  *
  * @author Dan Simpson
  */
-public class StoredSynonymsService extends LifecycleListener implements ClusterStateListener {
+public class StoredSynonymsService implements ClusterStateListener {
 
-  private static final String DOC_TYPE = "_doc";
+  public static final String COMPILE_THREAD_POOL = "stored_synonyms_compile";
+
+  /** Rulesets which compress to more than this are fetched by each node instead of shipped. */
+  public static final Setting<ByteSizeValue> MAX_PAYLOAD_SIZE =
+      Setting.byteSizeSetting(
+          "stored_synonyms.invalidation.max_payload_size",
+          new ByteSizeValue(256, ByteSizeUnit.KB),
+          Property.NodeScope);
+
+  /** How long to collect ruleset changes before announcing them to the cluster together. */
+  public static final Setting<TimeValue> BATCH_WINDOW =
+      Setting.timeSetting(
+          "stored_synonyms.invalidation.batch_window",
+          TimeValue.timeValueMillis(50),
+          TimeValue.ZERO,
+          Property.NodeScope);
+
+  /**
+   * Whether invalidations only go to nodes with shards of indices which reference the changed
+   * rulesets, and coordinating only nodes, rather than to every node.
+   */
+  public static final Setting<Boolean> TARGETED_INVALIDATION =
+      Setting.boolSetting("stored_synonyms.invalidation.targeted", true, Property.NodeScope);
+
+  /** The number of rulesets fetched and compiled per page while loading them all at startup. */
+  public static final Setting<Integer> LOAD_PAGE_SIZE =
+      Setting.intSetting("stored_synonyms.load.page_size", 100, 1, Property.NodeScope);
+
+  /**
+   * Whether rulesets are only loaded once an analysis chain on this node references them, and
+   * dropped once none does, rather than every node holding every ruleset.
+   */
+  public static final Setting<Boolean> LOAD_LAZY =
+      Setting.boolSetting("stored_synonyms.load.lazy", false, Property.NodeScope);
+
+  /** Whether to keep a copy of the cached rulesets on disk, to serve from while restarting. */
+  public static final Setting<Boolean> DISK_STORE_ENABLED =
+      Setting.boolSetting("stored_synonyms.disk_store.enabled", true, Property.NodeScope);
+
+  /**
+   * Compiled FSTs using at least this much heap are moved to memory mapped files, or -1 to only
+   * move those of rulesets which set off_heap.
+   */
+  public static final Setting<ByteSizeValue> OFF_HEAP_THRESHOLD =
+      Setting.byteSizeSetting(
+          "stored_synonyms.off_heap.threshold", new ByteSizeValue(-1), Property.NodeScope);
+
+  /** The name of the circuit breaker charged with cached rules and compiled maps. */
+  public static final String BREAKER = "stored_synonyms";
+
+  /** The heap which cached rules and compiled maps may use before the breaker trips. */
+  public static final Setting<ByteSizeValue> BREAKER_LIMIT =
+      Setting.memorySizeSetting("stored_synonyms.breaker.limit", "10%", Property.NodeScope);
+
+  /** The number of earlier versions kept with each ruleset, for rolling back. */
+  public static final Setting<Integer> HISTORY_SIZE =
+      Setting.intSetting("stored_synonyms.history.size", 5, 0, Property.NodeScope);
+
+  /** The heap which maps of replaced rules may keep using, so rolling back doesn't compile. */
+  public static final Setting<ByteSizeValue> HISTORY_WARM_LIMIT =
+      Setting.memorySizeSetting("stored_synonyms.history.warm_limit", "1%", Property.NodeScope);
+
+  private static final TimeValue DISK_STORE_DELAY = TimeValue.timeValueSeconds(1);
+
+  static final String DOC_TYPE = "_doc";
+  static final String COMPILED_FIELD = "compiled";
+  private static final String HISTORY_FIELD = StoredSynonymsXContent.HISTORY_FIELD;
+  private static final String CONTENT_HASH_FIELD = StoredSynonymsXContent.CONTENT_HASH_FIELD;
+  private static final String RULE_COUNT_FIELD = StoredSynonymsXContent.RULE_COUNT_FIELD;
+  private static final String SOURCE_BYTES_FIELD = StoredSynonymsXContent.SOURCE_BYTES_FIELD;
+  private static final String COMPILED_BYTES_FIELD = StoredSynonymsXContent.COMPILED_BYTES_FIELD;
+  static final int MAX_WRITE_ATTEMPTS = 5;
   private static final Logger log = LogManager.getLogger(StoredSynonymsService.class);
 
   private final Client client;
+  private final ThreadPool threadPool;
   private final String indexName;
+  private final long maxPayloadSize;
+  private final InvalidationBatcher batcher;
+  private final StoredSynonymsLoader loader;
+  private final StoredSynonymsLister lister;
+  private final StoredSynonymsBulkWriter bulkWriter;
+  private final StoredSynonymsRollback rollback;
+  private final PreparedRulesets prepared;
+  private final StoredSynonymsDiskStore diskStore;
+  private final OffHeapSynonymMaps offHeap;
+  private final SynonymMapInterner interner;
+  private final CircuitBreaker breaker;
+  private final int historySize;
+  private final boolean lazy;
+  // Whether this node may miss changes to rulesets which none of its indices reference
+  private final boolean targeted;
+  private final AtomicBoolean diskWriteScheduled = new AtomicBoolean(false);
+
+  private volatile State state = State.WAITING;
+  private volatile String loadedIndex;
+  private volatile String restoredIndex;
+  // The incarnation of the synonyms index whose older rulesets this node, as master, migrated
+  private volatile String migratedIndex;
 
   private final AtomicBoolean indexExists = new AtomicBoolean(false);
+  // Whether this node has brought the mapping of the synonyms index up to date
+  private final AtomicBoolean mapped = new AtomicBoolean(false);
 
-  private final Map<String, StoredSynonyms> cache = new ConcurrentHashMap<>();
-  private final Map<String, Map<Object, Consumer<List<String>>>> listeners =
+  private final Map<String, StoredSynonymsHolder> holders = new ConcurrentHashMap<>();
+  private final Map<String, ReloadQueue> reloads = new ConcurrentHashMap<>();
+  private final Map<List<String>, CompositeSynonyms> composites = new ConcurrentHashMap<>();
+  // Rulesets evicted to make room, which are loaded again once something references them
+  private final Set<String> evicted = ConcurrentHashMap.newKeySet();
+  // Rulesets being fetched because this node just started to use them
+  private final Set<String> demanded = ConcurrentHashMap.newKeySet();
+  // The newest change to each ruleset which this node was told about but hasn't applied yet
+  private final Map<String, Invalidation> unsettled = new ConcurrentHashMap<>();
+  // Analysis chains registered by each index, released when the index is removed from this node
+  private final Map<Index, Set<Tuple<StoredSynonymsHolder, String>>> indexChains =
       new ConcurrentHashMap<>();
+  // Generations of rulesets restored from disk, until the index confirms them
+  private final Map<String, Long> restored = new ConcurrentHashMap<>();
 
-  public StoredSynonymsService(Client client, ClusterService service, String indexName) {
+  public StoredSynonymsService(
+      Settings settings,
+      Client client,
+      ClusterService service,
+      ThreadPool threadPool,
+      NodeEnvironment nodeEnvironment,
+      CircuitBreaker breaker,
+      String indexName) {
     this.client = client;
+    this.threadPool = threadPool;
     this.indexName = indexName;
+    this.maxPayloadSize = MAX_PAYLOAD_SIZE.get(settings).getBytes();
+    this.historySize = HISTORY_SIZE.get(settings);
+    this.lazy = LOAD_LAZY.get(settings);
+    this.targeted = TARGETED_INVALIDATION.get(settings);
+    this.batcher =
+        new InvalidationBatcher(
+            client,
+            service,
+            threadPool,
+            BATCH_WINDOW.get(settings),
+            TimeValue.timeValueSeconds(10),
+            TARGETED_INVALIDATION.get(settings));
+    this.loader =
+        new StoredSynonymsLoader(client, threadPool, indexName, LOAD_PAGE_SIZE.get(settings));
+    Path localPath = nodeEnvironment.nodeDataPaths()[0].resolve("stored_synonyms");
+    this.diskStore =
+        DISK_STORE_ENABLED.get(settings) ? new StoredSynonymsDiskStore(localPath) : null;
+    this.offHeap =
+        new OffHeapSynonymMaps(
+            localPath.resolve("fst"), OFF_HEAP_THRESHOLD.get(settings).getBytes(), threadPool);
+    this.breaker = breaker;
+    this.interner =
+        new SynonymMapInterner(
+            breaker,
+            HISTORY_WARM_LIMIT.get(settings).getBytes(),
+            this::reclaim,
+            offHeap::release);
+    this.lister = new StoredSynonymsLister(client, indexName, this::checkIndexExists);
+    this.bulkWriter = new StoredSynonymsBulkWriter(this, client, threadPool, batcher, indexName);
+    this.rollback = new StoredSynonymsRollback(this, client, indexName);
+    this.prepared = new PreparedRulesets(this, interner, threadPool);
+    restoreFromDisk();
     service.addListener(this);
-    service.addLifecycleListener(this);
   }
 
-  @Override
-  public void afterStart() {
-    new Thread(
-            () -> {
-              ClusterHealthResponse health = null;
-              while (health == null
-                  || health.isTimedOut()
-                  || health.getStatus() == ClusterHealthStatus.RED) {
-                log.info("Waiting for cluster health");
-                try {
-                  health =
-                      client
-                          .admin()
-                          .cluster()
-                          .health(new ClusterHealthRequest().waitForYellowStatus())
-                          .actionGet(3000);
-                } catch (Throwable error) {
-                  try {
-                    Thread.sleep(100);
-                  } catch (Throwable timeout) {
-                    break;
-                  }
-                }
-              }
-              reloadAll();
-            })
-        .start();
+  /** How far this node has got loading the rulesets stored in the synonyms index. */
+  public enum State {
+    /** The synonyms index has no active primary yet, so nothing has been loaded. */
+    WAITING,
+    /** Every ruleset is being loaded; some may still be missing. */
+    LOADING,
+    /** Every stored ruleset has been loaded, or there is no synonyms index. */
+    READY
   }
 
   @Override
@@ -106,12 +259,95 @@ public class StoredSynonymsService extends LifecycleListener implements ClusterS
               // The index was removed, clear the cache
               if (indexName.equals(index.getName())) {
                 log.info("Index {} removed; clearing all synonym caches immediately", indexName);
-                cache.clear();
+                indexExists.set(false);
+                mapped.set(false);
+                clearAll();
               }
             });
+
+    ClusterState cluster = event.state();
+    if (cluster.blocks().hasGlobalBlock(GatewayService.STATE_NOT_RECOVERED_BLOCK)) {
+      return;
+    }
+
+    IndexMetadata metadata = cluster.metadata().index(indexName);
+    if (metadata == null) {
+      // Nothing stored, so there is nothing to wait for
+      dropRestored();
+      loadedIndex = null;
+      state = State.READY;
+      return;
+    }
+
+    // Load once per incarnation of the index, as soon as its primary can serve searches
+    String uuid = metadata.getIndexUUID();
+    IndexRoutingTable routing = cluster.routingTable().index(indexName);
+    if (routing == null || !routing.allPrimaryShardsActive()) {
+      return;
+    }
+    if (event.localNodeMaster() && !uuid.equals(migratedIndex)) {
+      migratedIndex = uuid;
+      threadPool.generic().execute(() -> migrate(uuid));
+    }
+    if (uuid.equals(loadedIndex)) {
+      return;
+    }
+
+    // A different incarnation replaces whatever we hold, regardless of version
+    boolean replace =
+        loadedIndex != null || (restoredIndex != null && !uuid.equals(restoredIndex));
+    loadedIndex = uuid;
+    state = State.LOADING;
+    threadPool.generic().execute(() -> reloadAll(uuid, replace));
+  }
+
+  /**
+   * The loading state of this node. Until it is READY, analysis may run without the rules of
+   * rulesets which are still being loaded.
+   */
+  public State state() {
+    return state;
   }
 
-  public void store(StoredSynonyms set, ActionListener<IndexResponse> listener) {
+  /**
+   * Validate, write and activate a ruleset. Every node compiles the new rules before any node
+   * switches to them, see {@link InvalidationBatcher#activate}.
+   *
+   * @param set - the ruleset to store
+   * @param listener - completed with the write, and the nodes which failed to prepare the rules
+   */
+  public void store(StoredSynonyms set, ActionListener<StoredSynonymsStoreResponse> listener) {
+    store(
+        set,
+        SequenceNumbers.UNASSIGNED_SEQ_NO,
+        SequenceNumbers.UNASSIGNED_PRIMARY_TERM,
+        listener);
+  }
+
+  /**
+   * Validate, write and activate a ruleset. Every node compiles the new rules before any node
+   * switches to them, see {@link InvalidationBatcher#activate}. Storing the rules and options which
+   * are already stored writes nothing and leaves every node as it is.
+   *
+   * @param set - the ruleset to store
+   * @param ifSeqNo - only store if the ruleset is at this sequence number, or UNASSIGNED_SEQ_NO
+   * @param ifPrimaryTerm - only store if the ruleset is at this primary term, or
+   *     UNASSIGNED_PRIMARY_TERM
+   * @param listener - completed with the write, and the nodes which failed to prepare the rules
+   */
+  public void store(
+      StoredSynonyms set,
+      long ifSeqNo,
+      long ifPrimaryTerm,
+      ActionListener<StoredSynonymsStoreResponse> listener) {
+    if ((ifSeqNo == SequenceNumbers.UNASSIGNED_SEQ_NO)
+        != (ifPrimaryTerm == SequenceNumbers.UNASSIGNED_PRIMARY_TERM)) {
+      listener.onFailure(
+          new StoredSynonymsException(
+              "if_seq_no and if_primary_term must be given together", RestStatus.BAD_REQUEST));
+      return;
+    }
+
     // Validate the passed synonym rules
     try {
       StoredSynonyms.validate(set);
@@ -120,39 +356,189 @@ public class StoredSynonymsService extends LifecycleListener implements ClusterS
       return;
     }
 
-    indexDocument(
-        set,
+    // Whatever hash came with the request, the stored one must describe the rules
+    set.setContentHash(StoredSynonyms.contentHash(set.getRules()));
+    indexDocument(set, ifSeqNo, ifPrimaryTerm, false, MAX_WRITE_ATTEMPTS, listener);
+  }
+
+  /**
+   * Activate a freshly written version of a ruleset on every node in two phases.
+   *
+   * @param set - the ruleset which was written
+   * @param indexResponse - the response to the write
+   * @param listener - completed with the write, and the nodes which failed to prepare the rules
+   */
+  void activate(
+      StoredSynonyms set,
+      IndexResponse indexResponse,
+      ActionListener<StoredSynonymsStoreResponse> listener)
+      throws IOException {
+    Invalidation invalidation =
+        updatedInvalidation(set, indexResponse.getSeqNo(), indexResponse.getPrimaryTerm());
+    batcher.activate(
+        invalidation,
         ActionListener.wrap(
-            (indexResponse) -> {
-              invalidateSynonymSet(
+            (prepareResponse) -> {
+              Map<String, String> failed = prepareResponse.failedNodes(set.getName());
+              int nodes = prepareResponse.getNodes().size() + prepareResponse.failures().size();
+              log.info(
+                  "Activated synonym cache for {} on {} nodes {} failures",
                   set.getName(),
-                  ActionListener.wrap(
-                      (invalidateResponse) -> {
-                        log.info(
-                            "Refreshed synonym cache for {} on {} nodes {} failures",
-                            set.getName(),
-                            invalidateResponse.getNodes().size(),
-                            invalidateResponse.failures().size());
+                  nodes,
+                  failed.size());
 
-                        if (invalidateResponse.hasFailures()) {
-                          invalidateResponse.failures().forEach(log::warn);
-                        }
+              if (prepareResponse.hasFailures()) {
+                prepareResponse.failures().forEach(log::warn);
+              }
 
-                        listener.onResponse(indexResponse);
-                      },
-                      listener::onFailure));
+              listener.onResponse(new StoredSynonymsStoreResponse(indexResponse, nodes, failed));
+            },
+            listener::onFailure));
+  }
+
+  /**
+   * Restore an earlier version of a ruleset from its history, see {@link StoredSynonymsRollback}.
+   *
+   * @param name - the name of the ruleset
+   * @param seqNo - the sequence number the version to restore was stored at, or UNASSIGNED_SEQ_NO
+   *     for the version before the current one
+   * @param listener - completed with the write, and the nodes which failed to prepare the rules
+   */
+  public void rollback(
+      String name, long seqNo, ActionListener<StoredSynonymsStoreResponse> listener) {
+    rollback.rollback(name, seqNo, listener);
+  }
+
+  /**
+   * Apply a patch to a stored ruleset. The document is read, patched, and written back guarded by
+   * the version it was read at, starting over from a fresh read if another write got in first.
+   * Only the patch is announced to the cluster.
+   *
+   * @param name - the name of the ruleset
+   * @param patch - the rules to add and remove
+   * @param listener - completed with the response of the final write
+   */
+  public void patch(
+      String name, StoredSynonymsPatch patch, ActionListener<IndexResponse> listener) {
+    if (patch.isEmpty()) {
+      listener.onFailure(
+          new StoredSynonymsException(
+              "A patch must add or remove at least one rule", RestStatus.BAD_REQUEST));
+      return;
+    }
+    ensureMappingIfExists(
+        ActionListener.wrap(
+            (mapped) -> {
+              patch(name, patch, MAX_WRITE_ATTEMPTS, listener);
             },
             listener::onFailure));
   }
 
+  private void patch(
+      String name,
+      StoredSynonymsPatch patch,
+      int attempts,
+      ActionListener<IndexResponse> listener) {
+    client
+        .prepareGet(indexName, DOC_TYPE, name)
+        .setFetchSource(null, COMPILED_FIELD)
+        .execute(
+            ActionListener.wrap(
+                (response) -> {
+                  if (!response.isExists()) {
+                    listener.onFailure(
+                        new StoredSynonymsException(
+                            String.format("StoredSynonym set not found with name %s", name),
+                            RestStatus.NOT_FOUND));
+                    return;
+                  }
+
+                  StoredSynonyms current = parseCurrent(response);
+                  StoredSynonyms patched = new StoredSynonyms();
+                  patched.setName(name);
+                  patched.setRules(patch.apply(current.getRules()));
+                  patched.setOffHeap(current.getOffHeap());
+                  patched.setHistory(nextHistory(current));
+
+                  // Validating and compiling a large ruleset is too slow for a transport thread
+                  threadPool
+                      .executor(COMPILE_THREAD_POOL)
+                      .execute(
+                          new AbstractRunnable() {
+
+                            @Override
+                            protected void doRun() throws Exception {
+                              StoredSynonyms.validate(patched);
+                              compileLocalChains(patched);
+                              writePatched(patched, patch, response, attempts, listener);
+                            }
+
+                            @Override
+                            public void onFailure(Exception error) {
+                              listener.onFailure(error);
+                            }
+                          });
+                },
+                listener::onFailure));
+  }
+
+  private void writePatched(
+      StoredSynonyms patched,
+      StoredSynonymsPatch patch,
+      GetResponse base,
+      int attempts,
+      ActionListener<IndexResponse> listener)
+      throws IOException {
+    String name = patched.getName();
+    client
+        .prepareIndex(indexName, DOC_TYPE, name)
+        .setIfSeqNo(base.getSeqNo())
+        .setIfPrimaryTerm(base.getPrimaryTerm())
+        .setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+        .setSource(
+            StoredSynonymsXContent.buildDocument(
+                patched, XContentFactory.contentBuilder(XContentType.JSON)))
+        .execute(
+            ActionListener.wrap(
+                (indexResponse) -> {
+                  batcher.invalidate(
+                      Invalidation.patched(
+                          name,
+                          indexResponse.getSeqNo(),
+                          indexResponse.getPrimaryTerm(),
+                          patch,
+                          base.getSeqNo(),
+                          base.getPrimaryTerm()),
+                      ActionListener.wrap(
+                          (invalidateResponse) -> {
+                            log.info(
+                                "Patched synonym cache for {} on {} nodes {} failures",
+                                name,
+                                invalidateResponse.getNodes().size(),
+                                invalidateResponse.failures(name));
+                            listener.onResponse(indexResponse);
+                          },
+                          listener::onFailure));
+                },
+                (error) -> {
+                  if (attempts > 1 && isConflict(error)) {
+                    log.debug("Retrying patch of {} after a concurrent write", name);
+                    patch(name, patch, attempts - 1, listener);
+                  } else {
+                    listener.onFailure(error);
+                  }
+                }));
+  }
+
   public void delete(String collectionName, ActionListener<DeleteResponse> listener) {
     log.info("Removing synonym set {}", collectionName);
     deleteDocument(
         collectionName,
         ActionListener.wrap(
             (deleteResponse) -> {
-              invalidateSynonymSet(
-                  collectionName,
+              batcher.invalidate(
+                  Invalidation.deleted(
+                      collectionName, deleteResponse.getSeqNo(), deleteResponse.getPrimaryTerm()),
                   ActionListener.wrap(
                       (invalidateResponse) -> {
                         log.info(
@@ -168,12 +554,43 @@ public class StoredSynonymsService extends LifecycleListener implements ClusterS
 
   public void get(String collectionName, ActionListener<StoredSynonyms> listener)
       throws IOException {
+    get(collectionName, false, true, listener);
+  }
+
+  /**
+   * Fetch a stored ruleset, along with the version it was read at. Unless asked for a realtime
+   * read or the history, the rules are served from this node's cache when the node is kept up to
+   * date with the ruleset, which may briefly lag a write while the cluster is told about it.
+   *
+   * @param collectionName - the name of the ruleset
+   * @param history - whether to include the earlier versions kept for rolling back
+   * @param realtime - whether to read the index even if the cached rules are current
+   * @param listener - completed with the ruleset
+   */
+  public void get(
+      String collectionName,
+      boolean history,
+      boolean realtime,
+      ActionListener<StoredSynonyms> listener)
+      throws IOException {
+    if (!history && !realtime) {
+      StoredSynonyms cached = cached(collectionName);
+      if (cached != null) {
+        listener.onResponse(cached);
+        return;
+      }
+    }
+
+    String[] excludes =
+        history ? new String[] {COMPILED_FIELD} : new String[] {COMPILED_FIELD, HISTORY_FIELD};
     client
         .prepareGet(indexName, DOC_TYPE, collectionName)
+        .setFetchSource(null, excludes)
         .execute(
             ActionListener.wrap(
                 (response) -> {
-                  if (!response.isExists()) {
+                  StoredSynonyms current = parseCurrent(response);
+                  if (current == null) {
                     listener.onFailure(
                         new StoredSynonymsException(
                             String.format(
@@ -181,74 +598,550 @@ public class StoredSynonymsService extends LifecycleListener implements ClusterS
                             RestStatus.NOT_FOUND));
                     return;
                   }
+                  listener.onResponse(current);
+                },
+                listener::onFailure));
+  }
 
+  /**
+   * List stored rulesets in name order, see {@link StoredSynonymsLister}.
+   *
+   * @param prefix - only list rulesets whose names start with this, or null for all
+   * @param from - the number of rulesets to skip
+   * @param size - the number of rulesets to list
+   * @param after - only list rulesets named after this, or null to start from the beginning
+   * @param listener - completed with the page
+   */
+  public void list(
+      String prefix,
+      int from,
+      int size,
+      String after,
+      ActionListener<StoredSynonymsListing> listener) {
+    lister.list(prefix, from, size, after, listener);
+  }
+
+  /**
+   * Bring rulesets stored by an earlier version of the plugin up to date, so they can be listed:
+   * the mapping gains the fields they lack, and each is rewritten with its summary, which indexes
+   * its name for listing. Runs on the elected master once per incarnation of the index, never from
+   * a request which only reads rulesets, since rewriting a ruleset moves its sequence number.
+   *
+   * @param uuid - the incarnation of the synonyms index to migrate
+   */
+  private void migrate(String uuid) {
+    ensureMapping(
+        ActionListener.wrap(
+            (mapped) -> {
+              summarizeAll(
+                  ActionListener.wrap(
+                      (done) -> {},
+                      (error) -> {
+                        log.warn("Failed to summarize rulesets of " + indexName, error);
+                        retryMigration(uuid);
+                      }));
+            },
+            (error) -> {
+              log.warn("Failed to update the mapping of " + indexName, error);
+              retryMigration(uuid);
+            }));
+  }
+
+  /** Migrate again on the next cluster state change. */
+  private void retryMigration(String uuid) {
+    if (uuid.equals(migratedIndex)) {
+      migratedIndex = null;
+    }
+  }
+
+  /**
+   * Store summaries for rulesets written before they existed. Each document is updated in place,
+   * guarded by the version it was read at; a ruleset written meanwhile already has its summary.
+   * Nodes are told about the new version, so versions served from their caches stay writable.
+   */
+  private void summarizeAll(ActionListener<Void> listener) {
+    QueryBuilder query =
+        QueryBuilders.boolQuery().mustNot(QueryBuilders.existsQuery(RULE_COUNT_FIELD));
+    loader.load(
+        query,
+        (synonyms, done) -> {
+          Map<String, Object> summary = StoredSynonymsXContent.summary(synonyms);
+          summary.put(CONTENT_HASH_FIELD, synonyms.getContentHash());
+          client
+              .prepareUpdate(indexName, DOC_TYPE, synonyms.getName())
+              .setDoc(summary)
+              .setIfSeqNo(synonyms.getSeqNo())
+              .setIfPrimaryTerm(synonyms.getPrimaryTerm())
+              .execute(
+                  ActionListener.wrap(
+                      (response) -> {
+                        // Caches still hold the version from before the rewrite
+                        batcher.invalidate(
+                            updatedInvalidation(
+                                synonyms, response.getSeqNo(), response.getPrimaryTerm()),
+                            ActionListener.wrap(
+                                (invalidated) -> done.onResponse(null),
+                                (error) -> {
+                                  log.warn(
+                                      "Failed to refresh caches of " + synonyms.getName(), error);
+                                  done.onResponse(null);
+                                }));
+                      },
+                      (error) -> {
+                        if (isConflict(error)) {
+                          done.onResponse(null);
+                        } else {
+                          done.onFailure(error);
+                        }
+                      }));
+        },
+        ActionListener.wrap(
+            (count) -> {
+              if (count == 0) {
+                listener.onResponse(null);
+                return;
+              }
+              log.info("Summarized {} rulesets stored before summaries existed", count);
+              client
+                  .admin()
+                  .indices()
+                  .prepareRefresh(indexName)
+                  .execute(
+                      ActionListener.wrap(
+                          (refreshed) -> listener.onResponse(null), listener::onFailure));
+            },
+            listener::onFailure));
+  }
+
+  /**
+   * A copy of the cached rules of a ruleset, if this node keeps them current: it has finished
+   * loading, hears about every change to the ruleset, which with lazy loading or targeted
+   * invalidation only holds while something on this node uses it, and has applied the last change
+   * it heard about. A change which failed or is still being applied may already be in the index.
+   *
+   * @param name - the name of the ruleset
+   * @return the cached rules with the version they came from, or null to read the index
+   */
+  private StoredSynonyms cached(String name) {
+    StoredSynonymsHolder holder = holders.get(name);
+    if (holder == null
+        || isLoading(name)
+        || ((lazy || targeted) && !isNeeded(name))
+        || unsettled.containsKey(name)) {
+      return null;
+    }
+
+    StoredSynonymsHolder.Snapshot snapshot = holder.snapshot();
+    StoredSynonyms synonyms = snapshot.synonyms();
+    if (synonyms == null || snapshot.seqNo() == SequenceNumbers.UNASSIGNED_SEQ_NO) {
+      return null;
+    }
+
+    StoredSynonyms copy = new StoredSynonyms();
+    copy.setName(synonyms.getName());
+    copy.setRules(synonyms.getRules());
+    copy.setContentHash(synonyms.getContentHash());
+    copy.setOffHeap(synonyms.getOffHeap());
+    copy.setVersion(snapshot.seqNo(), snapshot.primaryTerm());
+    return copy;
+  }
+
+  /**
+   * Announce a freshly indexed synonym set, shipping the rules along with the request when they are
+   * small enough, so nodes don't each have to fetch the document.
+   */
+  Invalidation updatedInvalidation(StoredSynonyms set, long seqNo, long primaryTerm)
+      throws IOException {
+    BytesReference bytes =
+        BytesReference.bytes(
+            StoredSynonymsXContent.buildDocument(set, XContentFactory.jsonBuilder(), false));
+    CompressedXContent source = new CompressedXContent(bytes);
+    return Invalidation.updated(
+        set.getName(),
+        seqNo,
+        primaryTerm,
+        source.compressed().length > maxPayloadSize ? null : source);
+  }
+
+  /**
+   * Apply many ruleset changes at once, see {@link StoredSynonymsBulkWriter}.
+   *
+   * @param items - the operations to apply, in order
+   * @param listener - completed with per item results
+   */
+  public void bulk(
+      List<StoredSynonymsBulk.Item> items, ActionListener<StoredSynonymsBulk.Response> listener) {
+    bulkWriter.bulk(items, listener);
+  }
+
+  /**
+   * Bring this node up to date with a ruleset change announced by another node.
+   *
+   * @param invalidation - the announced change
+   * @param listener - completed once the change is active, or found to be stale
+   */
+  protected void invalidate(Invalidation invalidation, ActionListener<Void> listener) {
+    unsettle(invalidation);
+    doInvalidate(invalidation, settling(invalidation, listener));
+  }
+
+  private void doInvalidate(Invalidation invalidation, ActionListener<Void> listener) {
+    String name = invalidation.getName();
+    if (ignores(name)) {
+      // Nothing on this node uses the ruleset; it is fetched fresh if something starts to
+      listener.onResponse(null);
+    } else if (isCurrent(name, invalidation.getSeqNo(), invalidation.getPrimaryTerm())) {
+      listener.onResponse(null);
+    } else if (invalidation.isDeleted()) {
+      remove(name, invalidation.getSeqNo(), invalidation.getPrimaryTerm());
+      listener.onResponse(null);
+    } else if (invalidation.getPatch() != null) {
+      applyPatch(invalidation, listener);
+    } else if (invalidation.getSource() != null) {
+      apply(
+          invalidation.getSource(),
+          invalidation.getSeqNo(),
+          invalidation.getPrimaryTerm(),
+          listener);
+    } else {
+      reload(name, listener);
+    }
+  }
+
+  /**
+   * Compile a ruleset change announced in two phases and hold it until it is committed, see {@link
+   * PreparedRulesets}.
+   *
+   * @param invalidation - the announced change
+   * @param listener - completed once the new rules are compiled, or found to be stale
+   */
+  protected void prepare(Invalidation invalidation, ActionListener<Void> listener) {
+    // Preparing leaves the previous rules active, so the cache stays behind the index until commit
+    unsettle(invalidation);
+    prepared.prepare(invalidation, listener);
+  }
+
+  /**
+   * Switch to rules prepared for a ruleset change, see {@link PreparedRulesets}.
+   *
+   * @param invalidation - the announced change
+   * @param listener - completed once the new rules are active, or found to be stale
+   */
+  protected void commit(Invalidation invalidation, ActionListener<Void> listener) {
+    unsettle(invalidation);
+    prepared.commit(invalidation, settling(invalidation, listener));
+  }
+
+  /** Stop serving a ruleset from the cache until the given change, or a newer one, is applied. */
+  private void unsettle(Invalidation invalidation) {
+    unsettled.merge(
+        invalidation.getName(),
+        invalidation,
+        (current, next) -> next.isOlderThan(current) ? current : next);
+  }
+
+  /**
+   * Serve a ruleset from the cache again once the given change is applied, unless newer ones are
+   * still outstanding. A failure leaves it unsettled until a later change is applied.
+   */
+  private ActionListener<Void> settling(Invalidation invalidation, ActionListener<Void> listener) {
+    return ActionListener.wrap(
+        (ok) -> {
+          unsettled.computeIfPresent(
+              invalidation.getName(),
+              (name, current) -> invalidation.isOlderThan(current) ? current : null);
+          listener.onResponse(ok);
+        },
+        listener::onFailure);
+  }
+
+  /**
+   * Whether this node already holds the given version of a ruleset, or a newer one.
+   *
+   * @param name - the name of the ruleset
+   * @param seqNo - the announced sequence number
+   * @param primaryTerm - the announced primary term
+   */
+  boolean isCurrent(String name, long seqNo, long primaryTerm) {
+    StoredSynonymsHolder holder = holders.get(name);
+    return holder != null && holder.snapshot().isAtLeast(seqNo, primaryTerm);
+  }
+
+  /**
+   * Apply rules shipped with an invalidation request, without fetching the document.
+   *
+   * @param source - the compressed ruleset source
+   * @param seqNo - the sequence number of the document
+   * @param primaryTerm - the primary term of the document
+   * @param listener - completed once the new rules are active
+   */
+  private void apply(
+      CompressedXContent source, long seqNo, long primaryTerm, ActionListener<Void> listener) {
+    StoredSynonyms synonyms;
+    try {
+      synonyms = StoredSynonymsXContent.parse(BytesReference.toBytes(source.uncompressed()));
+    } catch (Exception error) {
+      listener.onFailure(error);
+      return;
+    }
+    synonyms.setVersion(seqNo, primaryTerm);
+    putCache(synonyms, listener);
+  }
+
+  /**
+   * Apply a patch shipped with an invalidation request to the cached rules, provided they are the
+   * version the patch was applied to. Otherwise the document is fetched in full.
+   *
+   * @param invalidation - the announced patch
+   * @param listener - completed once the new rules are active
+   */
+  private void applyPatch(Invalidation invalidation, ActionListener<Void> listener) {
+    String name = invalidation.getName();
+    StoredSynonymsHolder.Snapshot current = holder(name).snapshot();
+    if (current.synonyms() == null
+        || current.seqNo() != invalidation.getBaseSeqNo()
+        || current.primaryTerm() != invalidation.getBasePrimaryTerm()) {
+      reload(name, listener);
+      return;
+    }
+
+    List<String> rules = current.synonyms().getRules();
+    StoredSynonyms patched = new StoredSynonyms();
+    patched.setName(name);
+    patched.setRules(invalidation.getPatch().apply(rules));
+    patched.setOffHeap(current.synonyms().getOffHeap());
+    patched.setVersion(invalidation.getSeqNo(), invalidation.getPrimaryTerm());
+
+    // One map is compiled for all of the patched rules; the current maps serve until it is ready
+    putCache(patched, listener);
+  }
+
+  /**
+   * Drop a deleted ruleset, unless this node already holds a newer version of it.
+   *
+   * @param name - the name of the ruleset
+   * @param seqNo - the sequence number of the delete
+   * @param primaryTerm - the primary term of the delete
+   */
+  private void remove(String name, long seqNo, long primaryTerm) {
+    if (holder(name).remove(seqNo, primaryTerm)) {
+      log.info("Removing rules for {}", name);
+      persist();
+    }
+  }
+
+  /**
+   * Fetch and compile the latest rules for a ruleset. Reloads of the same ruleset are collapsed:
+   * while one is running, any number of further requests share a single follow up reload. The
+   * previous rules stay active until the new maps are compiled.
+   *
+   * @param name - the name of the ruleset
+   * @param listener - completed once the new rules are active
+   */
+  private void reload(String name, ActionListener<Void> listener) {
+    reloads.computeIfAbsent(name, ReloadQueue::new).submit(listener);
+  }
+
+  private void doReload(String name, ActionListener<Void> listener) {
+    fetch(
+        name,
+        ActionListener.wrap(
+            (synonyms) -> {
+              // If the doc no longer exists, this reload is really a remove
+              if (synonyms == null) {
+                remove(
+                    name,
+                    SequenceNumbers.UNASSIGNED_SEQ_NO,
+                    SequenceNumbers.UNASSIGNED_PRIMARY_TERM);
+                listener.onResponse(null);
+                return;
+              }
+
+              if (lazy && !isNeeded(name)) {
+                // Released while it was being fetched
+                listener.onResponse(null);
+                return;
+              }
+              putCache(synonyms, listener);
+            },
+            listener::onFailure));
+  }
+
+  /**
+   * Fetch the latest version of a ruleset, along with its stored maps.
+   *
+   * @param name - the name of the ruleset
+   * @param listener - completed with the ruleset, or null if it doesn't exist
+   */
+  void fetch(String name, ActionListener<StoredSynonyms> listener) {
+    client
+        .prepareGet(indexName, DOC_TYPE, name)
+        .setFetchSource(null, HISTORY_FIELD)
+        .execute(
+            ActionListener.wrap(
+                (response) -> {
+                  if (!response.isExists()) {
+                    listener.onResponse(null);
+                    return;
+                  }
+
+                  StoredSynonyms synonyms;
                   try (XContentParser parser =
                       JsonXContent.jsonXContent.createParser(
                           NamedXContentRegistry.EMPTY,
                           LoggingDeprecationHandler.INSTANCE,
                           BytesReference.toBytes(response.getSourceAsBytesRef()))) {
-                    listener.onResponse(StoredSynonymsXContent.parseSynonymSet(parser));
-                  } catch (Exception exception) {
-                    listener.onFailure(exception);
+                    synonyms = StoredSynonymsXContent.parseSynonymSet(parser);
                   }
+                  synonyms.setVersion(response.getSeqNo(), response.getPrimaryTerm());
+                  listener.onResponse(synonyms);
                 },
                 listener::onFailure));
   }
 
-  private void invalidateSynonymSet(String name, ActionListener<InvalidateResponse> callback) {
-    InvalidateAction.INSTANCE
-        .newRequestBuilder(client)
-        .setTimeout("10s")
-        .setName(name)
-        .execute(callback);
+  /**
+   * Load every stored ruleset into the cache.
+   *
+   * @param uuid - the incarnation of the synonyms index being loaded
+   * @param replace - whether the index replaced an earlier incarnation, e.g. by a restore, in which
+   *     case its rulesets win regardless of version and rulesets it lacks are dropped
+   */
+  private void reloadAll(String uuid, boolean replace) {
+    Set<String> loaded = ConcurrentHashMap.newKeySet();
+    QueryBuilder query = QueryBuilders.matchAllQuery();
+    if (lazy) {
+      // Rulesets referenced later are fetched as they are registered
+      query = QueryBuilders.idsQuery().addIds(neededRulesets().toArray(new String[0]));
+    }
+    loader.load(
+        query,
+        (synonyms, listener) -> {
+          loaded.add(synonyms.getName());
+          restored.remove(synonyms.getName());
+          if (replace) {
+            // Versions from an earlier incarnation are meaningless against this one
+            synonyms.setVersion(
+                SequenceNumbers.UNASSIGNED_SEQ_NO, SequenceNumbers.UNASSIGNED_PRIMARY_TERM);
+          }
+          putCache(
+              synonyms,
+              ActionListener.wrap(
+                  listener::onResponse,
+                  (error) -> {
+                    // One ruleset which doesn't fit shouldn't hold back the rest
+                    log.warn("Skipping rules for " + synonyms.getName(), error);
+                    listener.onResponse(null);
+                  }));
+        },
+        ActionListener.wrap(
+            (count) -> {
+              if (replace) {
+                holders.keySet().stream()
+                    .filter(name -> !loaded.contains(name))
+                    .forEach(
+                        name ->
+                            remove(
+                                name,
+                                SequenceNumbers.UNASSIGNED_SEQ_NO,
+                                SequenceNumbers.UNASSIGNED_PRIMARY_TERM));
+              }
+              // Anything still as restored from disk was deleted while this node was away
+              dropRestored();
+              if (lazy) {
+                holders.values().stream()
+                    .filter(holder -> !isNeeded(holder.getName()))
+                    .forEach(holder -> drop(holder, false));
+              }
+              if (uuid.equals(loadedIndex)) {
+                state = State.READY;
+              }
+            },
+            (error) -> {
+              log.error("Failed to bulk load stored synonyms!", error);
+              // Retry on the next cluster state change
+              if (uuid.equals(loadedIndex)) {
+                loadedIndex = null;
+                state = State.WAITING;
+              }
+            }));
   }
 
-  protected void reload(String name) throws Exception {
-    GetResponse response = client.prepareGet(indexName, DOC_TYPE, name).get();
+  private void clearAll() {
+    restored.clear();
+    holders
+        .values()
+        .forEach(
+            holder ->
+                holder.remove(
+                    SequenceNumbers.UNASSIGNED_SEQ_NO, SequenceNumbers.UNASSIGNED_PRIMARY_TERM));
+    persist();
+  }
 
-    // If the doc no longer exists, this reload is really a remove
-    if (!response.isExists()) {
-      removeCache(name);
+  /** Remove rulesets restored from disk which nothing has confirmed or replaced since. */
+  private void dropRestored() {
+    restored.forEach(
+        (name, generation) -> {
+          if (restored.remove(name, generation)
+              && holder(name).snapshot().generation() == generation) {
+            remove(
+                name, SequenceNumbers.UNASSIGNED_SEQ_NO, SequenceNumbers.UNASSIGNED_PRIMARY_TERM);
+          }
+        });
+  }
+
+  /**
+   * Serve whatever rulesets were cached before the last shutdown. Their versions are kept, so the
+   * load from the index only recompiles rulesets which changed in the meantime.
+   */
+  private void restoreFromDisk() {
+    if (diskStore == null) {
       return;
     }
 
-    try (XContentParser parser =
-        JsonXContent.jsonXContent.createParser(
-            NamedXContentRegistry.EMPTY,
-            LoggingDeprecationHandler.INSTANCE,
-            BytesReference.toBytes(response.getSourceAsBytesRef()))) {
-      putCache(StoredSynonymsXContent.parseSynonymSet(parser));
+    StoredSynonymsDiskStore.Contents contents;
+    try {
+      contents = diskStore.read();
+    } catch (IOException error) {
+      log.warn("Ignoring unreadable stored synonyms on disk", error);
+      return;
+    }
+
+    for (StoredSynonyms synonyms : contents.getRulesets()) {
+      StoredSynonymsHolder holder = holder(synonyms.getName());
+      synonyms.packRules();
+      if (holder.update(synonyms)) {
+        restored.put(synonyms.getName(), holder.snapshot().generation());
+      }
     }
+    restoredIndex = contents.getIndexUuid();
+    log.info("Restored {} rulesets from disk", restored.size());
   }
 
-  private void reloadAll() {
-    SearchResponse response;
-    try {
-      response = client.prepareSearch(indexName).setSize(1000).get();
-    } catch (IndexNotFoundException infe) {
-      return;
-    } catch (Exception error) {
-      log.error("Failed to bulk load stored synonyms!", error);
-      return;
+  /** Schedule a write of the cached rulesets to disk, coalescing changes made in the meantime. */
+  private void persist() {
+    if (diskStore != null && diskWriteScheduled.compareAndSet(false, true)) {
+      threadPool.schedule(this::writeToDisk, DISK_STORE_DELAY, ThreadPool.Names.GENERIC);
     }
+  }
 
-    response
-        .getHits()
-        .forEach(
-            hit -> {
-              try (XContentParser parser =
-                  JsonXContent.jsonXContent.createParser(
-                      NamedXContentRegistry.EMPTY,
-                      LoggingDeprecationHandler.INSTANCE,
-                      BytesReference.toBytes(hit.getSourceRef()))) {
-                putCache(StoredSynonymsXContent.parseSynonymSet(parser));
-              } catch (Exception error) {
-                log.error("Cache load failure", error);
-              }
-            });
+  private void writeToDisk() {
+    diskWriteScheduled.set(false);
+    List<StoredSynonyms> rulesets = new ArrayList<>();
+    for (StoredSynonymsHolder holder : holders.values()) {
+      StoredSynonymsHolder.Snapshot snapshot = holder.snapshot();
+      if (snapshot.synonyms() != null) {
+        rulesets.add(snapshot.synonyms());
+      }
+    }
+
+    try {
+      diskStore.write(loadedIndex != null ? loadedIndex : restoredIndex, rulesets);
+    } catch (IOException error) {
+      log.warn("Failed to write stored synonyms to disk", error);
+    }
   }
 
-  private void checkIndexExists(ActionListener<Boolean> listener) {
+  void checkIndexExists(ActionListener<Boolean> listener) {
     if (indexExists.get()) {
       listener.onResponse(true);
       return;
@@ -267,16 +1160,19 @@ public class StoredSynonymsService extends LifecycleListener implements ClusterS
                 listener::onFailure));
   }
 
-  private void createIndex(ActionListener<CreateIndexResponse> listener) {
+  void createIndex(ActionListener<CreateIndexResponse> listener) {
     checkIndexExists(
         ActionListener.wrap(
             (exists) -> {
               // Don't try to create the index
               if (exists) {
-                if (!indexExists.get()) {
-                  indexExists.set(true);
-                }
-                listener.onResponse(null);
+                ensureMapping(
+                    ActionListener.wrap(
+                        (updated) -> {
+                          indexExists.set(true);
+                          listener.onResponse(null);
+                        },
+                        listener::onFailure));
                 return;
               }
 
@@ -286,6 +1182,8 @@ public class StoredSynonymsService extends LifecycleListener implements ClusterS
                       .put(IndexMetadata.SETTING_NUMBER_OF_REPLICAS, 1)
                       .build();
 
+              Map<String, Object> properties = mappingProperties();
+              properties.put("synonyms", mapping("binary", false));
               client
                   .admin()
                   .indices()
@@ -293,18 +1191,110 @@ public class StoredSynonymsService extends LifecycleListener implements ClusterS
                   .setSettings(indexSettings)
                   .setWaitForActiveShards(ActiveShardCount.ONE)
                   .setTimeout(TimeValue.timeValueSeconds(30))
-                  .addMapping(
-                      DOC_TYPE,
-                      "name",
-                      "type=keyword,index=false",
-                      "synonyms",
-                      "type=binary,index=false")
-                  .execute(listener);
+                  .addMapping(DOC_TYPE, Collections.singletonMap("properties", properties))
+                  .execute(
+                      ActionListener.wrap(
+                          (response) -> {
+                            mapped.set(true);
+                            listener.onResponse(response);
+                          },
+                          listener::onFailure));
             },
             listener::onFailure));
   }
 
-  private void indexDocument(StoredSynonyms set, ActionListener<IndexResponse> listener) {
+  /**
+   * Bring the mapping of an existing synonyms index up to date before writing to it. Writes which
+   * need an existing ruleset don't create the index, and fail to find the ruleset without it.
+   */
+  void ensureMappingIfExists(ActionListener<Void> listener) {
+    checkIndexExists(
+        ActionListener.wrap(
+            (exists) -> {
+              if (exists) {
+                ensureMapping(listener);
+              } else {
+                listener.onResponse(null);
+              }
+            },
+            listener::onFailure));
+  }
+
+  /**
+   * Add the fields introduced since an index was created, so the compiled maps aren't mapped
+   * dynamically as a new field per chain fingerprint, old rules aren't indexed, and rulesets can be
+   * listed by name. Documents written before then are summarized by {@link #migrate}. The
+   * mapping is only updated once per node and incarnation of the index, not on every write.
+   */
+  private void ensureMapping(ActionListener<Void> listener) {
+    if (mapped.get()) {
+      listener.onResponse(null);
+      return;
+    }
+
+    client
+        .admin()
+        .indices()
+        .preparePutMapping(indexName)
+        .setType(DOC_TYPE)
+        .setSource(Collections.singletonMap("properties", mappingProperties()))
+        .execute(
+            ActionListener.wrap(
+                (response) -> {
+                  mapped.set(true);
+                  listener.onResponse(null);
+                },
+                listener::onFailure));
+  }
+
+  /**
+   * The mapping of every field but the legacy ones. Only the name is searchable, and the summary
+   * fields are only kept as doc values, which is all listing needs.
+   */
+  private static Map<String, Object> mappingProperties() {
+    Map<String, Object> name = mapping("keyword", false);
+    name.put("fields", Collections.singletonMap("indexed", mapping("keyword", true)));
+    Map<String, Object> unindexed = new HashMap<>();
+    unindexed.put("type", "object");
+    unindexed.put("enabled", false);
+
+    Map<String, Object> properties = new HashMap<>();
+    properties.put("name", name);
+    properties.put(COMPILED_FIELD, unindexed);
+    properties.put(HISTORY_FIELD, unindexed);
+    properties.put(CONTENT_HASH_FIELD, mapping("keyword", false));
+    properties.put(RULE_COUNT_FIELD, mapping("integer", false));
+    properties.put(SOURCE_BYTES_FIELD, mapping("long", false));
+    properties.put(COMPILED_BYTES_FIELD, mapping("long", false));
+    return properties;
+  }
+
+  private static Map<String, Object> mapping(String type, boolean index) {
+    Map<String, Object> field = new HashMap<>();
+    field.put("type", type);
+    field.put("index", index);
+    return field;
+  }
+
+  /**
+   * Write a new version of a ruleset, moving the version it replaces into its history, and activate
+   * it. The write is guarded by the version read, starting over from a fresh read if another write
+   * got in first, unless the caller asked for a particular version.
+   *
+   * @param set - the new version
+   * @param ifSeqNo - the sequence number the caller expects, or UNASSIGNED_SEQ_NO
+   * @param ifPrimaryTerm - the primary term the caller expects, or UNASSIGNED_PRIMARY_TERM
+   * @param compiled - whether the rules already compiled locally on an earlier attempt
+   * @param attempts - the number of reads and writes left to try
+   * @param listener - completed with the write, and the nodes which failed to prepare the rules
+   */
+  private void indexDocument(
+      StoredSynonyms set,
+      long ifSeqNo,
+      long ifPrimaryTerm,
+      boolean compiled,
+      int attempts,
+      ActionListener<StoredSynonymsStoreResponse> listener) {
     createIndex(
         ActionListener.wrap(
             (available) -> {
@@ -312,21 +1302,153 @@ public class StoredSynonymsService extends LifecycleListener implements ClusterS
                 log.info("Created SynonymStore index {}", indexName);
               }
 
-              try {
-                client
-                    .prepareIndex(indexName, DOC_TYPE, set.getName())
-                    .setRefreshPolicy(RefreshPolicy.IMMEDIATE)
-                    .setSource(
-                        StoredSynonymsXContent.build(
-                            set, XContentFactory.contentBuilder(XContentType.JSON)))
-                    .execute(listener);
-              } catch (IOException e) {
-                listener.onFailure(e);
-              }
+              client
+                  .prepareGet(indexName, DOC_TYPE, set.getName())
+                  .setFetchSource(null, COMPILED_FIELD)
+                  .execute(
+                      ActionListener.wrap(
+                          (response) -> {
+                            StoredSynonyms current = parseCurrent(response);
+                            if (ifSeqNo != SequenceNumbers.UNASSIGNED_SEQ_NO
+                                && (current == null
+                                    || current.getSeqNo() != ifSeqNo
+                                    || current.getPrimaryTerm() != ifPrimaryTerm)) {
+                              listener.onFailure(
+                                  new StoredSynonymsException(
+                                      String.format(
+                                          "StoredSynonym set %s is not at seq_no [%d] and"
+                                              + " primary_term [%d]",
+                                          set.getName(),
+                                          ifSeqNo,
+                                          ifPrimaryTerm),
+                                      RestStatus.CONFLICT));
+                              return;
+                            }
+
+                            if (current != null && current.isSameContent(set)) {
+                              log.debug("Skipping write of unchanged {}", set.getName());
+                              listener.onResponse(
+                                  StoredSynonymsStoreResponse.noop(indexName, current));
+                              return;
+                            }
+
+                            if (compiled) {
+                              writeAndActivate(
+                                  set, current, ifSeqNo, ifPrimaryTerm, attempts, listener);
+                              return;
+                            }
+                            precompile(
+                                set,
+                                ActionListener.wrap(
+                                    (ignored) -> {
+                                      writeAndActivate(
+                                          set, current, ifSeqNo, ifPrimaryTerm, attempts, listener);
+                                    },
+                                    listener::onFailure));
+                          },
+                          listener::onFailure));
             },
             listener::onFailure));
   }
 
+  private void writeAndActivate(
+      StoredSynonyms set,
+      StoredSynonyms current,
+      long ifSeqNo,
+      long ifPrimaryTerm,
+      int attempts,
+      ActionListener<StoredSynonymsStoreResponse> listener)
+      throws IOException {
+    writeVersion(
+        set,
+        current,
+        ActionListener.wrap(
+            (indexResponse) -> {
+              activate(set, indexResponse, listener);
+            },
+            (error) -> {
+              // A conditional write reports the conflict rather than writing over it
+              if (attempts > 1
+                  && isConflict(error)
+                  && ifSeqNo == SequenceNumbers.UNASSIGNED_SEQ_NO) {
+                log.debug("Retrying write of {} after a concurrent write", set.getName());
+                indexDocument(set, ifSeqNo, ifPrimaryTerm, true, attempts - 1, listener);
+              } else {
+                listener.onFailure(error);
+              }
+            }));
+  }
+
+  /**
+   * Write a new version of a ruleset over the version which was read, or create it if there was
+   * none. Fails with a version conflict if another write got in since the read.
+   *
+   * @param set - the new version
+   * @param replaced - the version which was read, along with its history, or null
+   * @param listener - completed with the response to the write
+   */
+  void writeVersion(
+      StoredSynonyms set, StoredSynonyms replaced, ActionListener<IndexResponse> listener)
+      throws IOException {
+    IndexRequestBuilder request =
+        client
+            .prepareIndex(indexName, DOC_TYPE, set.getName())
+            .setRefreshPolicy(RefreshPolicy.IMMEDIATE);
+    if (replaced == null) {
+      set.setHistory(Collections.emptyList());
+      request.setCreate(true);
+    } else {
+      set.setHistory(nextHistory(replaced));
+      request.setIfSeqNo(replaced.getSeqNo()).setIfPrimaryTerm(replaced.getPrimaryTerm());
+    }
+    request
+        .setSource(
+            StoredSynonymsXContent.buildDocument(
+                set, XContentFactory.contentBuilder(XContentType.JSON)))
+        .execute(listener);
+  }
+
+  /**
+   * The history to store with a new version of a ruleset: the version it replaces, followed by the
+   * versions before that, up to the configured number.
+   *
+   * @param replaced - the version being replaced, along with its history
+   */
+  List<StoredSynonyms> nextHistory(StoredSynonyms replaced) {
+    List<StoredSynonyms> history = new ArrayList<>();
+    if (historySize == 0) {
+      return history;
+    }
+
+    StoredSynonyms version = new StoredSynonyms();
+    version.setRules(replaced.getRules());
+    version.setOffHeap(replaced.getOffHeap());
+    version.setVersion(replaced.getSeqNo(), replaced.getPrimaryTerm());
+    history.add(version);
+    for (StoredSynonyms earlier : replaced.getHistory()) {
+      if (history.size() >= historySize) {
+        break;
+      }
+      history.add(earlier);
+    }
+    return history;
+  }
+
+  /** Parse the stored version of a ruleset, or null if it doesn't exist. */
+  static StoredSynonyms parseCurrent(GetResponse response) throws IOException {
+    if (!response.isExists()) {
+      return null;
+    }
+    StoredSynonyms current =
+        StoredSynonymsXContent.parse(BytesReference.toBytes(response.getSourceAsBytesRef()));
+    current.setVersion(response.getSeqNo(), response.getPrimaryTerm());
+    return current;
+  }
+
+  static boolean isConflict(Exception error) {
+    return ExceptionsHelper.unwrapCause(error) instanceof VersionConflictEngineException;
+  }
+
   private void deleteDocument(String id, ActionListener<DeleteResponse> listener) {
     client
         .prepareDelete(indexName, DOC_TYPE, id)
@@ -334,37 +1456,665 @@ public class StoredSynonymsService extends LifecycleListener implements ClusterS
         .execute(listener);
   }
 
-  private void putCache(StoredSynonyms synonyms) {
-    log.info("Updating rules for {}", synonyms.getName());
-    cache.put(synonyms.getName(), synonyms);
-    invokeCallbacks(synonyms.getName(), synonyms.getRules());
+  private void putCache(StoredSynonyms synonyms, ActionListener<Void> listener) {
+    putCache(holder(synonyms.getName()), synonyms, listener);
   }
 
-  private void removeCache(String name) {
-    log.info("Removing rules for {}", name);
-    cache.remove(name);
-    invokeCallbacks(name, new ArrayList<>());
+  private void putCache(
+      StoredSynonymsHolder holder, StoredSynonyms synonyms, ActionListener<Void> listener) {
+    compileAll(
+        holder,
+        synonyms,
+        ActionListener.wrap(
+            (maps) -> {
+              if (maps != null) {
+                publish(holder, synonyms, maps);
+              }
+              listener.onResponse(null);
+            },
+            listener::onFailure));
   }
 
-  private void invokeCallbacks(String rulesetName, List<String> rules) {
-    Map<Object, Consumer<List<String>>> callbacks = listeners.get(rulesetName);
-    if (callbacks == null) {
+  /**
+   * Compile new rules for every analysis chain registered with a holder, without publishing them.
+   * The maps must be settled with the interner once they are published or abandoned.
+   *
+   * @param holder - the holder of the ruleset
+   * @param synonyms - the new rules
+   * @param listener - completed with the maps keyed by chain fingerprint, or null if the holder
+   *     already has these rules or newer ones
+   */
+  void compileAll(
+      StoredSynonymsHolder holder,
+      StoredSynonyms synonyms,
+      ActionListener<Map<String, SynonymMap>> listener) {
+    if (holder.snapshot().isAtLeast(synonyms.getSeqNo(), synonyms.getPrimaryTerm())) {
+      // A newer version already won; don't bother compiling this one
+      listener.onResponse(null);
+      return;
+    }
+
+    Map<String, Analyzer> chains = new HashMap<>(holder.chains());
+    if (chains.isEmpty()) {
+      synonyms.setCompiled(Collections.emptyMap());
+      listener.onResponse(Collections.emptyMap());
       return;
     }
-    callbacks.forEach(
-        (filter, consumer) -> {
-          consumer.accept(rules);
+
+    AtomicReference<Exception> tripped = new AtomicReference<>();
+    GroupedActionListener<Tuple<String, SynonymMap>> compiled =
+        new GroupedActionListener<>(
+            ActionListener.wrap(
+                (results) -> {
+                  // The serialized maps are loaded now, don't hold on to them
+                  synonyms.setCompiled(Collections.emptyMap());
+                  Map<String, SynonymMap> maps = toMap(results);
+                  if (tripped.get() != null) {
+                    // Keep the previous rules rather than compiling on demand past the breaker
+                    interner.settle(maps.values());
+                    listener.onFailure(tripped.get());
+                    return;
+                  }
+                  listener.onResponse(maps);
+                },
+                listener::onFailure),
+            chains.size());
+
+    String contentHash = synonyms.getContentHash();
+    chains.forEach(
+        (fingerprint, analyzer) -> {
+          compile(synonyms, contentHash, fingerprint, analyzer, tripped, compiled);
         });
   }
 
-  public void listen(String rulesetName, Object object, Consumer<List<String>> handler) {
-    listeners
-        .computeIfAbsent(rulesetName, (key) -> new WeakHashMap<Object, Consumer<List<String>>>())
-        .put(object, handler);
+  /**
+   * Publish compiled rules, unless the holder already has these rules or newer ones, and settle
+   * their maps.
+   */
+  void publish(
+      StoredSynonymsHolder holder, StoredSynonyms synonyms, Map<String, SynonymMap> maps) {
+    synonyms.packRules();
+    if (holder.update(synonyms, maps)) {
+      log.info("Updating rules for {} with {} compiled chains", synonyms.getName(), maps.size());
+      persist();
+    }
+    interner.settle(maps.values());
+  }
+
+  /**
+   * Compile a map for a single analysis chain on the compile pool, or share the interned map for
+   * identical rules. Failures produce a null map, so the chain is compiled again once a filter
+   * finds it missing rather than holding back the other chains, unless the breaker tripped, which
+   * is recorded so the caller can keep the previous maps instead. Maps produced here must be
+   * settled with the interner once they are published or abandoned.
+   */
+  private void compile(
+      StoredSynonyms synonyms,
+      String contentHash,
+      String fingerprint,
+      Analyzer analyzer,
+      AtomicReference<Exception> tripped,
+      ActionListener<Tuple<String, SynonymMap>> listener) {
+    threadPool
+        .executor(COMPILE_THREAD_POOL)
+        .execute(
+            new AbstractRunnable() {
+
+              @Override
+              protected void doRun() throws Exception {
+                SynonymMap map =
+                    interner.intern(
+                        contentHash, fingerprint, () -> compile(synonyms, fingerprint, analyzer));
+                listener.onResponse(new Tuple<>(fingerprint, map));
+              }
+
+              @Override
+              public void onFailure(Exception error) {
+                if (error instanceof CircuitBreakingException) {
+                  tripped.compareAndSet(null, error);
+                }
+                log.warn("Failed to compile rules for " + synonyms.getName(), error);
+                listener.onResponse(new Tuple<>(fingerprint, null));
+              }
+            });
+  }
+
+  /** Compiles the maps filters find missing from a snapshot through the interner. */
+  private final StoredSynonymsHolder.MapCompiler missingMaps =
+      new StoredSynonymsHolder.MapCompiler() {
+        @Override
+        public void compile(
+            StoredSynonymsHolder holder,
+            StoredSynonymsHolder.Snapshot snapshot,
+            String fingerprint,
+            Analyzer analyzer) {
+          compileMissing(holder, snapshot, fingerprint, analyzer);
+        }
+
+        @Override
+        public void compileNow(
+            StoredSynonymsHolder holder,
+            StoredSynonymsHolder.Snapshot snapshot,
+            String fingerprint,
+            Analyzer analyzer) {
+          StoredSynonyms synonyms = snapshot.synonyms();
+          SynonymMap map;
+          try {
+            map =
+                interner.intern(
+                    synonyms.getContentHash(),
+                    fingerprint,
+                    () -> StoredSynonymsService.this.compile(synonyms, fingerprint, analyzer));
+          } catch (Exception error) {
+            throw ExceptionsHelper.convertToRuntime(error);
+          }
+          holder.install(synonyms, fingerprint, map);
+          interner.settle(Collections.singletonList(map));
+        }
+      };
+
+  /**
+   * Compile a map which a filter found missing from a snapshot, on the compile pool and through
+   * the interner, and install it in the snapshot's holder. The filter serves the map of the
+   * previous rules meanwhile.
+   */
+  private void compileMissing(
+      StoredSynonymsHolder holder,
+      StoredSynonymsHolder.Snapshot snapshot,
+      String fingerprint,
+      Analyzer analyzer) {
+    StoredSynonyms synonyms = snapshot.synonyms();
+    CompileBatch.run(
+        threadPool,
+        Collections.singletonList(fingerprint),
+        (key, done) -> {
+          SynonymMap map =
+              interner.intern(
+                  synonyms.getContentHash(),
+                  fingerprint,
+                  () -> compile(synonyms, fingerprint, analyzer));
+          if (map == null) {
+            holder.abandon(synonyms, fingerprint);
+          } else {
+            holder.install(synonyms, fingerprint, map);
+            interner.settle(Collections.singletonList(map));
+          }
+          done.onResponse(null);
+        },
+        ActionListener.wrap(
+            (ok) -> {},
+            (error) -> {
+              holder.abandon(synonyms, fingerprint);
+              log.warn("Failed to compile rules for " + holder.getName(), error);
+            }));
+  }
+
+  private SynonymMap compile(StoredSynonyms synonyms, String fingerprint, Analyzer analyzer)
+      throws IOException, ParseException {
+    SynonymMap map = load(synonyms, fingerprint, analyzer);
+    if (offHeap.shouldOffload(synonyms, map)) {
+      try {
+        map = offHeap.offload(map);
+      } catch (IOException error) {
+        log.warn("Keeping rules for " + synonyms.getName() + " on heap", error);
+      }
+    }
+    return map;
+  }
+
+  /**
+   * Load the map stored with the rules for an analysis chain, or compile it if there is none, or
+   * it can't be read, e.g. after an upgrade changed the format.
+   */
+  private static SynonymMap load(StoredSynonyms synonyms, String fingerprint, Analyzer analyzer)
+      throws IOException, ParseException {
+    byte[] stored = synonyms.getCompiled().get(fingerprint);
+    if (stored != null) {
+      try {
+        return SynonymMaps.fromBytes(stored);
+      } catch (IOException | RuntimeException error) {
+        log.warn("Recompiling unreadable stored map for " + synonyms.getName(), error);
+      }
+    }
+    return StoredSynonyms.parseSynonymMap(analyzer, synonyms.getRules());
+  }
+
+  /**
+   * Compile the rules for every analysis chain this node knows to reference the ruleset, on the
+   * compile pool, so they can be stored alongside the rules and loaded by other nodes with the same
+   * chains instead of parsing the rules again.
+   */
+  private void precompile(StoredSynonyms synonyms, ActionListener<Void> listener) {
+    threadPool
+        .executor(COMPILE_THREAD_POOL)
+        .execute(
+            new AbstractRunnable() {
+
+              @Override
+              protected void doRun() {
+                compileLocalChains(synonyms);
+                listener.onResponse(null);
+              }
+
+              @Override
+              public void onFailure(Exception error) {
+                listener.onFailure(error);
+              }
+            });
+  }
+
+  void compileLocalChains(StoredSynonyms synonyms) {
+    StoredSynonymsHolder holder = holders.get(synonyms.getName());
+    if (holder == null) {
+      synonyms.setCompiled(Collections.emptyMap());
+      return;
+    }
+
+    Map<String, byte[]> compiled = new HashMap<>();
+    holder
+        .chains()
+        .forEach(
+            (fingerprint, analyzer) -> {
+              try {
+                SynonymMap map = StoredSynonyms.parseSynonymMap(analyzer, synonyms.getRules());
+                // Refuse rulesets whose maps wouldn't fit, before every node tries to load them
+                long bytes = SynonymMaps.ramBytesUsed(map);
+                breaker.addEstimateBytesAndMaybeBreak(bytes, "<" + synonyms.getName() + ">");
+                try {
+                  if (map.fst != null) {
+                    compiled.put(fingerprint, SynonymMaps.toBytes(map));
+                  }
+                } finally {
+                  breaker.addWithoutBreaking(-bytes);
+                }
+              } catch (CircuitBreakingException error) {
+                throw error;
+              } catch (Exception error) {
+                // Nodes compile from the rules instead
+                log.debug("Failed to precompile rules for " + synonyms.getName(), error);
+              }
+            });
+    synonyms.setCompiled(compiled);
+  }
+
+  private static Map<String, SynonymMap> toMap(Collection<Tuple<String, SynonymMap>> results) {
+    Map<String, SynonymMap> maps = new HashMap<>();
+    for (Tuple<String, SynonymMap> result : results) {
+      if (result.v2() != null) {
+        maps.put(result.v1(), result.v2());
+      }
+    }
+    return maps;
+  }
+
+  /**
+   * Fetch the holder for a ruleset, creating an empty one if the ruleset has not been seen yet.
+   *
+   * @param rulesetName - the name of the ruleset
+   * @return the holder shared by every filter referencing the ruleset
+   */
+  public StoredSynonymsHolder holder(String rulesetName) {
+    StoredSynonymsHolder holder = holders.get(rulesetName);
+    if (holder != null) {
+      return holder;
+    }
+
+    holder =
+        holders.computeIfAbsent(
+            rulesetName,
+            (name) ->
+                new StoredSynonymsHolder(
+                    name,
+                    (retired, next) -> {
+                      retire(retired, next);
+                      if (retired.synonyms() != next.synonyms()) {
+                        rebuildComposites(name);
+                      }
+                    },
+                    missingMaps));
+    if (evicted.remove(rulesetName)) {
+      log.debug("Loading evicted rules for {}", rulesetName);
+      reload(
+          rulesetName,
+          ActionListener.wrap(
+              (ok) -> {},
+              (error) -> log.warn("Failed to load evicted rules for " + rulesetName, error)));
+    }
+    return holder;
+  }
+
+  /**
+   * Evict rulesets which no analysis chain on this node references, least recently used first,
+   * until at least the given number of bytes has been released from the breaker or there are no
+   * more candidates. Evicted rulesets are loaded again when something references them.
+   *
+   * @param bytes - the number of bytes wanted
+   */
+  private synchronized void reclaim(long bytes) {
+    long start = breaker.getUsed();
+    List<StoredSynonymsHolder> candidates = new ArrayList<>();
+    for (StoredSynonymsHolder holder : holders.values()) {
+      if (!holder.isReferenced()
+          && holder.snapshot().synonyms() != null
+          && !isCompositeMember(holder.getName())) {
+        candidates.add(holder);
+      }
+    }
+    candidates.sort(Comparator.comparingLong(StoredSynonymsHolder::lastUsed));
+
+    for (StoredSynonymsHolder holder : candidates) {
+      if (start - breaker.getUsed() >= bytes) {
+        break;
+      }
+      // Lazily loaded rulesets are fetched again when they are registered
+      drop(holder, !lazy);
+    }
+  }
+
+  /**
+   * Stop holding a ruleset which nothing on this node references.
+   *
+   * @param holder - the holder of the ruleset
+   * @param reloadOnDemand - whether to load the ruleset again when its holder is next requested
+   */
+  private void drop(StoredSynonymsHolder holder, boolean reloadOnDemand) {
+    if (!holders.remove(holder.getName(), holder)) {
+      return;
+    }
+    if (reloadOnDemand) {
+      evicted.add(holder.getName());
+    }
+    restored.remove(holder.getName());
+    holder.remove(SequenceNumbers.UNASSIGNED_SEQ_NO, SequenceNumbers.UNASSIGNED_PRIMARY_TERM);
+    log.debug("Dropped unreferenced rules for {}", holder.getName());
+    persist();
+  }
+
+  private boolean isCompositeMember(String name) {
+    for (List<String> names : composites.keySet()) {
+      if (names.contains(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Fetch the holder for several rulesets merged into one, creating it if this combination has not
+   * been seen yet. The merged rules are rebuilt in the background whenever a member changes.
+   *
+   * @param rulesetNames - the names of the member rulesets, in order of precedence
+   * @return the holder shared by every filter referencing the same combination
+   */
+  public StoredSynonymsHolder composite(List<String> rulesetNames) {
+    List<String> key = Collections.unmodifiableList(new ArrayList<>(rulesetNames));
+    CompositeSynonyms composite =
+        composites.computeIfAbsent(
+            key,
+            (names) -> {
+              CompositeSynonyms created =
+                  new CompositeSynonyms(
+                      names,
+                      new StoredSynonymsHolder(
+                          String.join(",", names), this::retire, missingMaps));
+              names.forEach(this::holder);
+              return created;
+            });
+    if (lazy || targeted) {
+      for (String name : key) {
+        demand(name);
+      }
+    }
+    rebuild(composite);
+    return composite.getHolder();
+  }
+
+  /** Release what a retired snapshot held, and charge the breaker for the rules replacing it. */
+  private void retire(StoredSynonymsHolder.Snapshot retired, StoredSynonymsHolder.Snapshot next) {
+    if (retired.synonyms() != null && retired.synonyms() != next.synonyms()) {
+      // Keep the replaced maps around in case the change is rolled back
+      interner.warm(
+          retired.synonyms().getName(),
+          next.synonyms() == null ? Collections.emptyList() : retired.compiledMaps());
+    }
+    interner.retire(retired.heldMaps(), next.heldMaps());
+    if (retired.synonyms() != next.synonyms()) {
+      breaker.addWithoutBreaking(ramBytesUsed(next) - ramBytesUsed(retired));
+    }
+  }
+
+  private static long ramBytesUsed(StoredSynonymsHolder.Snapshot snapshot) {
+    return snapshot.synonyms() == null ? 0 : snapshot.synonyms().ramBytesUsed();
+  }
+
+  /**
+   * Register an analysis chain of an index which references a ruleset, so maps are compiled for
+   * it ahead of publishing new rules until the index is removed from this node. A chain is
+   * registered once per index, however many analyzers of the index build it. Chains built for an
+   * _analyze request without an index are never released, so they aren't registered at all.
+   *
+   * @param index - the index the chain belongs to
+   * @param holder - the holder of the ruleset
+   * @param fingerprint - the fingerprint of the analysis chain which feeds the parser
+   * @param analyzer - the analyzer built from that chain
+   */
+  public void registerChain(
+      Index index, StoredSynonymsHolder holder, String fingerprint, Analyzer analyzer) {
+    if (IndexMetadata.INDEX_UUID_NA_VALUE.equals(index.getUUID())) {
+      return;
+    }
+    if (!indexChains
+        .computeIfAbsent(index, (key) -> ConcurrentHashMap.newKeySet())
+        .add(new Tuple<>(holder, fingerprint))) {
+      return;
+    }
+    boolean referenced = holder.isReferenced();
+    holder.registerChain(fingerprint, analyzer);
+    if ((lazy || targeted) && !referenced && holders.get(holder.getName()) == holder) {
+      demand(holder.getName());
+    }
+  }
+
+  /**
+   * Fetch a ruleset which this node has started to use, since changes made while nothing used it
+   * were not sent here. Until the synonyms index has been loaded, there is nothing to do: the
+   * initial load includes every ruleset referenced by then.
+   */
+  private void demand(String name) {
+    if (loadedIndex == null) {
+      return;
+    }
+    log.debug("Loading rules for {} on first use", name);
+    demanded.add(name);
+    reload(
+        name,
+        ActionListener.wrap(
+            (ok) -> demanded.remove(name),
+            (error) -> {
+              demanded.remove(name);
+              log.warn("Failed to load rules for " + name, error);
+            }));
+  }
+
+  /**
+   * Whether a ruleset may still arrive: either this node hasn't finished loading rulesets, or it
+   * is fetching this one because it just started to use it.
+   *
+   * @param name - the name of the ruleset
+   */
+  public boolean isLoading(String name) {
+    return state != State.READY || demanded.contains(name);
+  }
+
+  /** Whether this node ignores changes to a ruleset, because it only loads rulesets it uses. */
+  boolean ignores(String name) {
+    return lazy && !isNeeded(name);
+  }
+
+  /** Whether a holder is the one this node serves its ruleset from, rather than a dropped one. */
+  boolean isHolder(StoredSynonymsHolder holder) {
+    return holders.get(holder.getName()) == holder;
+  }
+
+  /** Whether an analysis chain on this node uses a ruleset, directly or through a composite. */
+  private boolean isNeeded(String name) {
+    StoredSynonymsHolder holder = holders.get(name);
+    return holder != null && (holder.isReferenced() || isCompositeMember(name));
+  }
+
+  private Set<String> neededRulesets() {
+    Set<String> needed = new HashSet<>();
+    for (StoredSynonymsHolder holder : holders.values()) {
+      if (holder.isReferenced()) {
+        needed.add(holder.getName());
+      }
+    }
+    composites.keySet().forEach(needed::addAll);
+    return needed;
+  }
+
+  /**
+   * Release the analysis chains of an index which was removed from this node. Maps compiled for
+   * chains no other index uses are dropped, and freed once no ruleset holds them.
+   *
+   * @param index - the removed index
+   */
+  public void releaseChains(Index index) {
+    Set<Tuple<StoredSynonymsHolder, String>> chains = indexChains.remove(index);
+    if (chains == null) {
+      return;
+    }
+    for (Tuple<StoredSynonymsHolder, String> chain : chains) {
+      chain.v1().unregisterChain(chain.v2());
+    }
+    for (Tuple<StoredSynonymsHolder, String> chain : chains) {
+      StoredSynonymsHolder holder = chain.v1();
+      if (holder.isReferenced()) {
+        continue;
+      }
+      if (holders.get(holder.getName()) == holder) {
+        if (lazy && !isNeeded(holder.getName())) {
+          drop(holder, false);
+        }
+      } else {
+        releaseComposite(holder);
+      }
+    }
+  }
+
+  /** Forget a composite which no analysis chain uses any more, and members only it used. */
+  private void releaseComposite(StoredSynonymsHolder holder) {
+    for (CompositeSynonyms composite : composites.values()) {
+      if (composite.getHolder() != holder
+          || !composites.remove(composite.getNames(), composite)) {
+        continue;
+      }
+      holder.remove(SequenceNumbers.UNASSIGNED_SEQ_NO, SequenceNumbers.UNASSIGNED_PRIMARY_TERM);
+      if (lazy) {
+        for (String name : composite.getNames()) {
+          StoredSynonymsHolder member = holders.get(name);
+          if (member != null && !isNeeded(name)) {
+            drop(member, false);
+          }
+        }
+      }
+    }
+  }
+
+  /** A summary of the compiled maps shared between rulesets on this node. */
+  public ToXContentObject internerStats() {
+    return interner.stats();
+  }
+
+  private void rebuildComposites(String name) {
+    for (CompositeSynonyms composite : composites.values()) {
+      if (composite.getNames().contains(name)) {
+        rebuild(composite);
+      }
+    }
+  }
+
+  /** Merge and compile the member rules on the compile pool, unless a rebuild is pending. */
+  private void rebuild(CompositeSynonyms composite) {
+    if (!composite.schedule()) {
+      return;
+    }
+
+    threadPool
+        .executor(COMPILE_THREAD_POOL)
+        .execute(
+            new AbstractRunnable() {
+
+              @Override
+              protected void doRun() {
+                StoredSynonyms merged = composite.merge((name) -> holder(name).snapshot());
+                putCache(
+                    composite.getHolder(),
+                    merged,
+                    ActionListener.wrap((ok) -> {}, this::onFailure));
+              }
+
+              @Override
+              public void onFailure(Exception error) {
+                composite.cancel();
+                log.warn("Failed to merge rules for " + composite.getNames(), error);
+              }
+            });
+  }
+
+  /** Collapses concurrent reloads of a ruleset: at most one runs, and at most one more waits. */
+  private final class ReloadQueue {
+
+    private final String name;
+    private boolean running;
+    private List<ActionListener<Void>> queued;
+
+    ReloadQueue(String name) {
+      this.name = name;
+    }
+
+    void submit(ActionListener<Void> listener) {
+      synchronized (this) {
+        if (running) {
+          if (queued == null) {
+            queued = new ArrayList<>();
+          }
+          queued.add(listener);
+          return;
+        }
+        running = true;
+      }
+      run(Collections.singletonList(listener));
+    }
+
+    private void run(List<ActionListener<Void>> listeners) {
+      try {
+        doReload(
+            name,
+            ActionListener.wrap(
+                (response) -> finish(listeners, null), (error) -> finish(listeners, error)));
+      } catch (Exception error) {
+        finish(listeners, error);
+      }
+    }
+
+    private void finish(List<ActionListener<Void>> listeners, Exception error) {
+      List<ActionListener<Void>> next;
+      synchronized (this) {
+        next = queued;
+        queued = null;
+        running = next != null;
+      }
+
+      if (error == null) {
+        ActionListener.onResponse(listeners, null);
+      } else {
+        ActionListener.onFailure(listeners, error);
+      }
 
-    StoredSynonyms cached = cache.get(rulesetName);
-    if (cached != null) {
-      handler.accept(cached.getRules());
+      if (next != null) {
+        run(next);
+      }
     }
   }
 }
@@ -0,0 +1,108 @@
+package io.bonsai.plugins.synonyms;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.common.xcontent.StatusToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * The outcome of storing a ruleset: the write itself, and how many nodes activated the new rules,
+ * along with the nodes which failed to prepare them. Storing unchanged rules writes nothing, and
+ * only reports the version which is already stored.
+ *
+ * @author Dan Simpson
+ */
+public class StoredSynonymsStoreResponse implements StatusToXContentObject {
+
+  private final IndexResponse indexResponse;
+  private final StoredSynonyms unchanged;
+  private final String index;
+  private final int nodes;
+  private final Map<String, String> failedNodes;
+
+  /**
+   * @param indexResponse - the response to writing the document
+   * @param nodes - the number of nodes asked to prepare the new rules
+   * @param failedNodes - failure messages keyed by the id of each node which failed to prepare
+   */
+  public StoredSynonymsStoreResponse(
+      IndexResponse indexResponse, int nodes, Map<String, String> failedNodes) {
+    this(indexResponse, null, null, nodes, failedNodes);
+  }
+
+  private StoredSynonymsStoreResponse(
+      IndexResponse indexResponse,
+      StoredSynonyms unchanged,
+      String index,
+      int nodes,
+      Map<String, String> failedNodes) {
+    this.indexResponse = indexResponse;
+    this.unchanged = unchanged;
+    this.index = index;
+    this.nodes = nodes;
+    this.failedNodes = failedNodes;
+  }
+
+  /**
+   * The response to storing the rules and options which were already stored.
+   *
+   * @param index - the name of the index holding the ruleset
+   * @param stored - the stored version, with its sequence number and primary term
+   */
+  public static StoredSynonymsStoreResponse noop(String index, StoredSynonyms stored) {
+    return new StoredSynonymsStoreResponse(null, stored, index, 0, Collections.emptyMap());
+  }
+
+  /** The response to writing the document, or null if nothing was written. */
+  public IndexResponse getIndexResponse() {
+    return indexResponse;
+  }
+
+  public boolean isNoop() {
+    return indexResponse == null;
+  }
+
+  /** Failure messages keyed by the id of each node which failed to prepare the new rules. */
+  public Map<String, String> getFailedNodes() {
+    return failedNodes;
+  }
+
+  public String getLocation(String routing) {
+    return isNoop() ? null : indexResponse.getLocation(routing);
+  }
+
+  @Override
+  public RestStatus status() {
+    return isNoop() ? RestStatus.OK : indexResponse.status();
+  }
+
+  @Override
+  public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+    builder.startObject();
+    if (isNoop()) {
+      builder.field("_index", index);
+      builder.field("_type", StoredSynonymsService.DOC_TYPE);
+      builder.field("_id", unchanged.getName());
+      builder.field("result", DocWriteResponse.Result.NOOP.getLowercase());
+      builder.field("_seq_no", unchanged.getSeqNo());
+      builder.field("_primary_term", unchanged.getPrimaryTerm());
+      return builder.endObject();
+    }
+
+    indexResponse.innerToXContent(builder, params);
+    builder.startObject("activation");
+    builder.field("nodes", nodes);
+    builder.startObject("failed");
+    for (Map.Entry<String, String> failure : failedNodes.entrySet()) {
+      builder.field(failure.getKey(), failure.getValue());
+    }
+    builder.endObject();
+    builder.endObject();
+    builder.endObject();
+    return builder;
+  }
+}
@@ -2,13 +2,17 @@ package io.bonsai.plugins.synonyms;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.elasticsearch.common.ParsingException;
 import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
 import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.seqno.SequenceNumbers;
 
 /**
  * XContent Parser/Generator for the StoredSynonyms model.
@@ -19,8 +23,43 @@ public class StoredSynonymsXContent {
 
   private static final String NAME_FIELD = "name";
   private static final String RULES_FIELD = "rules";
+  private static final String OFF_HEAP_FIELD = "off_heap";
+  private static final String COMPILED_FIELD = "compiled";
+  private static final String SEQ_NO_FIELD = "seq_no";
+  private static final String PRIMARY_TERM_FIELD = "primary_term";
+  static final String HISTORY_FIELD = "history";
+  static final String CONTENT_HASH_FIELD = "content_hash";
+  static final String RULE_COUNT_FIELD = "rule_count";
+  static final String SOURCE_BYTES_FIELD = "source_bytes";
+  static final String COMPILED_BYTES_FIELD = "compiled_bytes";
 
+  /**
+   * Parse a stored ruleset, along with the fields only the store writes: its content hash, history
+   * and compiled maps.
+   *
+   * @param parser - the parser, positioned at or before the start of the ruleset object
+   * @return the ruleset
+   * @throws IOException
+   */
   public static StoredSynonyms parseSynonymSet(XContentParser parser) throws IOException {
+    return parseSynonymSet(parser, true);
+  }
+
+  /**
+   * Parse a ruleset sent by a client. The history and compiled maps are only ever written by the
+   * store, so they are refused rather than trusted, and the content hash is derived from the rules
+   * again, so a ruleset fetched from the store can be written back as is.
+   *
+   * @param parser - the parser, positioned at or before the start of the ruleset object
+   * @return the ruleset
+   * @throws IOException
+   */
+  public static StoredSynonyms parseClientSet(XContentParser parser) throws IOException {
+    return parseSynonymSet(parser, false);
+  }
+
+  private static StoredSynonyms parseSynonymSet(XContentParser parser, boolean stored)
+      throws IOException {
     StoredSynonyms set = new StoredSynonyms();
 
     String fieldName = null;
@@ -39,14 +78,31 @@ public class StoredSynonymsXContent {
       } else if (token.isValue()) {
         if (NAME_FIELD.equals(fieldName)) {
           set.setName(parser.text());
+        } else if (OFF_HEAP_FIELD.equals(fieldName)) {
+          set.setOffHeap(parser.booleanValue());
+        } else if (CONTENT_HASH_FIELD.equals(fieldName)) {
+          if (stored) {
+            set.setContentHash(parser.text());
+          }
+        } else if (RULE_COUNT_FIELD.equals(fieldName)
+            || SOURCE_BYTES_FIELD.equals(fieldName)
+            || COMPILED_BYTES_FIELD.equals(fieldName)) {
+          // Summaries are derived from the rules whenever they are written
         } else {
           throw new ParsingException(
               parser.getTokenLocation(), "unexpected field [" + fieldName + "]");
         }
+      } else if (!stored && (COMPILED_FIELD.equals(fieldName) || HISTORY_FIELD.equals(fieldName))) {
+        throw new ParsingException(
+            parser.getTokenLocation(), "[" + fieldName + "] is managed by the store");
+      } else if (token == XContentParser.Token.START_OBJECT && COMPILED_FIELD.equals(fieldName)) {
+        set.setCompiled(parseBinaryMap(parser));
       } else if (token == XContentParser.Token.START_ARRAY) {
 
         if (RULES_FIELD.equals(fieldName)) {
           set.setRules(parseStringArray(parser));
+        } else if (HISTORY_FIELD.equals(fieldName)) {
+          set.setHistory(parseHistory(parser));
         } else {
           throw new ParsingException(
               parser.getTokenLocation(),
@@ -76,15 +132,153 @@ public class StoredSynonymsXContent {
     return items;
   }
 
+  private static List<StoredSynonyms> parseHistory(XContentParser parser) throws IOException {
+    List<StoredSynonyms> history = new ArrayList<>();
+    XContentParser.Token token;
+    while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+      if (token != XContentParser.Token.START_OBJECT) {
+        throw new ParsingException(parser.getTokenLocation(), "expected a version object");
+      }
+
+      StoredSynonyms version = new StoredSynonyms();
+      long seqNo = SequenceNumbers.UNASSIGNED_SEQ_NO;
+      long primaryTerm = SequenceNumbers.UNASSIGNED_PRIMARY_TERM;
+      String fieldName = null;
+      while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+        if (token == XContentParser.Token.FIELD_NAME) {
+          fieldName = parser.currentName();
+        } else if (token == XContentParser.Token.START_ARRAY && RULES_FIELD.equals(fieldName)) {
+          version.setRules(parseStringArray(parser));
+        } else if (SEQ_NO_FIELD.equals(fieldName)) {
+          seqNo = parser.longValue();
+        } else if (PRIMARY_TERM_FIELD.equals(fieldName)) {
+          primaryTerm = parser.longValue();
+        } else if (OFF_HEAP_FIELD.equals(fieldName)) {
+          version.setOffHeap(parser.booleanValue());
+        } else {
+          throw new ParsingException(
+              parser.getTokenLocation(), "unexpected field [" + fieldName + "] in history");
+        }
+      }
+      version.setVersion(seqNo, primaryTerm);
+      history.add(version);
+    }
+
+    return history;
+  }
+
+  private static Map<String, byte[]> parseBinaryMap(XContentParser parser) throws IOException {
+    Map<String, byte[]> items = new HashMap<>();
+    XContentParser.Token token;
+    while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+      if (token != XContentParser.Token.FIELD_NAME) {
+        throw new ParsingException(parser.getTokenLocation(), "expected a field name");
+      }
+      String key = parser.currentName();
+      parser.nextToken();
+      items.put(key, parser.binaryValue());
+    }
+
+    return items;
+  }
+
   public static XContentBuilder build(StoredSynonyms synonymSet, final XContentBuilder builder)
       throws IOException {
     builder.startObject();
-    builder.field(NAME_FIELD, synonymSet.getName());
-    builder.field(RULES_FIELD, synonymSet.getRules());
+    buildFields(synonymSet, builder);
+    buildHistory(synonymSet, builder);
     builder.endObject();
     return builder;
   }
 
+  /**
+   * The sizes stored alongside the rules, so rulesets can be listed without reading the rules.
+   *
+   * @param synonymSet - the ruleset
+   * @return the summary fields, keyed by field name
+   */
+  public static Map<String, Object> summary(StoredSynonyms synonymSet) {
+    Map<String, Object> summary = new LinkedHashMap<>();
+    summary.put(RULE_COUNT_FIELD, synonymSet.getRuleCount());
+    summary.put(SOURCE_BYTES_FIELD, synonymSet.getSourceBytes());
+    summary.put(COMPILED_BYTES_FIELD, synonymSet.getCompiledBytes());
+    return summary;
+  }
+
+  /**
+   * Build the stored form of a ruleset, which also carries its summary, history and compiled maps.
+   *
+   * @param synonymSet - the ruleset
+   * @param builder - the destination
+   * @return the builder
+   * @throws IOException
+   */
+  public static XContentBuilder buildDocument(
+      StoredSynonyms synonymSet, final XContentBuilder builder) throws IOException {
+    return buildDocument(synonymSet, builder, true);
+  }
+
+  /**
+   * Build the stored form of a ruleset, optionally leaving out its history, which nodes caching the
+   * rules have no use for.
+   *
+   * @param synonymSet - the ruleset
+   * @param builder - the destination
+   * @param history - whether to include the history
+   * @return the builder
+   * @throws IOException
+   */
+  public static XContentBuilder buildDocument(
+      StoredSynonyms synonymSet, final XContentBuilder builder, boolean history)
+      throws IOException {
+    builder.startObject();
+    buildFields(synonymSet, builder);
+    for (Map.Entry<String, Object> field : summary(synonymSet).entrySet()) {
+      builder.field(field.getKey(), field.getValue());
+    }
+    if (history) {
+      buildHistory(synonymSet, builder);
+    }
+    if (!synonymSet.getCompiled().isEmpty()) {
+      builder.startObject(COMPILED_FIELD);
+      for (Map.Entry<String, byte[]> entry : synonymSet.getCompiled().entrySet()) {
+        builder.field(entry.getKey(), entry.getValue());
+      }
+      builder.endObject();
+    }
+    builder.endObject();
+    return builder;
+  }
+
+  private static void buildFields(StoredSynonyms synonymSet, final XContentBuilder builder)
+      throws IOException {
+    builder.field(NAME_FIELD, synonymSet.getName());
+    builder.field(RULES_FIELD, synonymSet.getRules());
+    if (synonymSet.getOffHeap() != null) {
+      builder.field(OFF_HEAP_FIELD, synonymSet.getOffHeap());
+    }
+    builder.field(CONTENT_HASH_FIELD, synonymSet.getContentHash());
+  }
+
+  private static void buildHistory(StoredSynonyms synonymSet, final XContentBuilder builder)
+      throws IOException {
+    if (synonymSet.getHistory().isEmpty()) {
+      return;
+    }
+    builder.startArray(HISTORY_FIELD);
+    for (StoredSynonyms version : synonymSet.getHistory()) {
+      builder.startObject();
+      builder.field(SEQ_NO_FIELD, version.getSeqNo());
+      builder.field(PRIMARY_TERM_FIELD, version.getPrimaryTerm());
+      builder.field(RULES_FIELD, version.getRules());
+      if (version.getOffHeap() != null) {
+        builder.field(OFF_HEAP_FIELD, version.getOffHeap());
+      }
+      builder.endObject();
+    }
+    builder.endArray();
+  }
+
   public static StoredSynonyms parse(byte[] bytes) throws IOException {
     try (XContentParser parser =
         JsonXContent.jsonXContent.createParser(
@@ -0,0 +1,401 @@
+package io.bonsai.plugins.synonyms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * A node wide table of compiled synonym maps, keyed by the content of the rules and the fingerprint
+ * of the analysis chain which compiled them, so rulesets with identical rules share their maps no
+ * matter what they are called or how many indices use them.
+ *
+ * <p>Entries are counted by the published snapshots holding them, which holders report as they
+ * retire snapshots. Maps which were handed out but not yet published are pinned until they are
+ * settled, so an entry can't be evicted between compiling and publishing. Once nothing holds an
+ * entry, it is evicted.
+ *
+ * <p>Maps a ruleset was just switched away from can be kept warm, so switching back to the same
+ * rules, e.g. by a rollback, doesn't compile them again. Warm maps are released oldest first once
+ * they use more than their budget.
+ *
+ * <p>The heap used by every interned map is charged to a circuit breaker. When a new map doesn't
+ * fit, the interner asks for memory to be reclaimed once before giving up, and the map is dropped.
+ *
+ * @author Dan Simpson
+ */
+class SynonymMapInterner {
+
+  private final Map<Key, Entry> entries = new HashMap<>();
+  private final Map<SynonymMap, Entry> byMap = new IdentityHashMap<>();
+  // Warm entries by the ruleset which last published them, least recently warmed first
+  private final Map<String, List<Entry>> warm = new LinkedHashMap<>();
+  private final CircuitBreaker breaker;
+  private final long warmLimit;
+  private final LongConsumer reclaim;
+  private final Consumer<SynonymMap> evicted;
+  private long lookups;
+  private long hits;
+  private long warmBytes;
+
+  SynonymMapInterner(Consumer<SynonymMap> evicted) {
+    this(new NoopCircuitBreaker(CircuitBreaker.FIELDDATA), (bytes) -> {}, evicted);
+  }
+
+  /**
+   * @param breaker - charged with the heap used by interned maps
+   * @param reclaim - asked to free at least the given number of bytes when the breaker trips
+   * @param evicted - called with each map once nothing holds it
+   */
+  SynonymMapInterner(CircuitBreaker breaker, LongConsumer reclaim, Consumer<SynonymMap> evicted) {
+    this(breaker, 0, reclaim, evicted);
+  }
+
+  /**
+   * @param breaker - charged with the heap used by interned maps
+   * @param warmLimit - the heap warm maps may use; 0 keeps none
+   * @param reclaim - asked to free at least the given number of bytes when the breaker trips
+   * @param evicted - called with each map once nothing holds it
+   */
+  SynonymMapInterner(
+      CircuitBreaker breaker,
+      long warmLimit,
+      LongConsumer reclaim,
+      Consumer<SynonymMap> evicted) {
+    this.breaker = breaker;
+    this.warmLimit = warmLimit;
+    this.reclaim = reclaim;
+    this.evicted = evicted;
+  }
+
+  /**
+   * Fetch the map for some rules and an analysis chain, compiling it if it isn't interned yet. The
+   * map is pinned until it is passed to {@link #settle}.
+   *
+   * @param contentHash - the hash of the rules, see {@link StoredSynonyms#contentHash}
+   * @param fingerprint - the fingerprint of the analysis chain which feeds the parser
+   * @param compiler - compiles the map when it isn't interned; may return null
+   * @return the shared map, or null if the compiler produced none
+   */
+  SynonymMap intern(String contentHash, String fingerprint, Compiler compiler) throws Exception {
+    Key key = new Key(contentHash, fingerprint);
+    synchronized (this) {
+      lookups++;
+      Entry entry = entries.get(key);
+      if (entry != null) {
+        hits++;
+        entry.pinned++;
+        return entry.map;
+      }
+    }
+
+    // Compile outside the lock; if another thread wins the race its map is used instead
+    SynonymMap compiled = compiler.compile();
+    if (compiled == null) {
+      return null;
+    }
+    long bytes = SynonymMaps.ramBytesUsed(compiled);
+    charge(bytes, compiled);
+
+    SynonymMap interned;
+    synchronized (this) {
+      Entry entry = entries.get(key);
+      if (entry == null) {
+        entry = new Entry(key, compiled, bytes);
+        entries.put(key, entry);
+        byMap.put(compiled, entry);
+      }
+      entry.pinned++;
+      interned = entry.map;
+    }
+    if (interned != compiled) {
+      breaker.addWithoutBreaking(-bytes);
+      evicted.accept(compiled);
+    }
+    return interned;
+  }
+
+  private void charge(long bytes, SynonymMap compiled) {
+    String label = "<stored_synonyms_map>";
+    try {
+      breaker.addEstimateBytesAndMaybeBreak(bytes, label);
+    } catch (CircuitBreakingException tripped) {
+      // Warm maps are the cheapest to give up
+      coolAll();
+      reclaim.accept(bytes);
+      try {
+        breaker.addEstimateBytesAndMaybeBreak(bytes, label);
+      } catch (CircuitBreakingException error) {
+        evicted.accept(compiled);
+        throw error;
+      }
+    }
+  }
+
+  /**
+   * Unpin maps returned by {@link #intern}, once they were published or abandoned. Maps which no
+   * snapshot holds are evicted.
+   */
+  void settle(Collection<SynonymMap> maps) {
+    for (SynonymMap map : maps) {
+      synchronized (this) {
+        Entry entry = byMap.get(map);
+        if (entry == null || --entry.pinned > 0 || entry.isHeld()) {
+          continue;
+        }
+        remove(entry);
+      }
+      evicted.accept(map);
+    }
+  }
+
+  /**
+   * Account for a snapshot being replaced. Maps only the replacement holds gain a reference, and
+   * maps only the retired snapshot held lose one. Maps which aren't interned are ignored.
+   *
+   * @param retired - the maps of the snapshot which was replaced
+   * @param next - the maps of its replacement
+   */
+  void retire(Collection<SynonymMap> retired, Collection<SynonymMap> next) {
+    Set<SynonymMap> before = identitySet(retired);
+    Set<SynonymMap> after = identitySet(next);
+    synchronized (this) {
+      for (SynonymMap map : after) {
+        Entry entry = byMap.get(map);
+        if (entry != null && !before.contains(map)) {
+          entry.references++;
+        }
+      }
+    }
+    for (SynonymMap map : before) {
+      if (after.contains(map)) {
+        continue;
+      }
+      synchronized (this) {
+        Entry entry = byMap.get(map);
+        if (entry == null || --entry.references > 0 || entry.isHeld()) {
+          continue;
+        }
+        remove(entry);
+      }
+      evicted.accept(map);
+    }
+  }
+
+  /**
+   * Keep maps interned once nothing publishes them. Each ruleset keeps a single set of warm maps,
+   * which replaces the set it kept before.
+   *
+   * @param owner - the name of the ruleset which published the maps
+   * @param maps - the maps to keep warm; empty to release those the ruleset kept
+   */
+  void warm(String owner, Collection<SynonymMap> maps) {
+    List<SynonymMap> released = new ArrayList<>();
+    synchronized (this) {
+      List<Entry> entries = new ArrayList<>();
+      if (warmLimit > 0) {
+        for (SynonymMap map : identitySet(maps)) {
+          Entry entry = byMap.get(map);
+          if (entry != null) {
+            entry.warm++;
+            warmBytes += entry.bytes;
+            entries.add(entry);
+          }
+        }
+      }
+
+      cool(warm.remove(owner), released);
+      if (!entries.isEmpty()) {
+        warm.put(owner, entries);
+      }
+      Iterator<List<Entry>> eldest = warm.values().iterator();
+      while (warmBytes > warmLimit && eldest.hasNext()) {
+        cool(eldest.next(), released);
+        eldest.remove();
+      }
+    }
+    released.forEach(evicted);
+  }
+
+  private void coolAll() {
+    List<SynonymMap> released = new ArrayList<>();
+    synchronized (this) {
+      for (List<Entry> entries : warm.values()) {
+        cool(entries, released);
+      }
+      warm.clear();
+    }
+    released.forEach(evicted);
+  }
+
+  private void cool(List<Entry> entries, List<SynonymMap> released) {
+    if (entries == null) {
+      return;
+    }
+    for (Entry entry : entries) {
+      entry.warm--;
+      warmBytes -= entry.bytes;
+      if (!entry.isHeld()) {
+        remove(entry);
+        released.add(entry.map);
+      }
+    }
+  }
+
+  synchronized Stats stats() {
+    long references = 0;
+    long bytes = 0;
+    long saved = 0;
+    for (Entry entry : entries.values()) {
+      references += entry.references;
+      bytes += entry.bytes;
+      saved += entry.bytes * Math.max(0, entry.references - 1);
+    }
+    return new Stats(entries.size(), references, lookups, hits, bytes, saved, warmBytes);
+  }
+
+  private void remove(Entry entry) {
+    entries.remove(entry.key);
+    byMap.remove(entry.map);
+    breaker.addWithoutBreaking(-entry.bytes);
+  }
+
+  private static Set<SynonymMap> identitySet(Collection<SynonymMap> maps) {
+    Set<SynonymMap> set = Collections.newSetFromMap(new IdentityHashMap<>());
+    set.addAll(maps);
+    return set;
+  }
+
+  /** Compiles a map on a miss. */
+  @FunctionalInterface
+  interface Compiler {
+    SynonymMap compile() throws Exception;
+  }
+
+  private static final class Key {
+
+    private final String contentHash;
+    private final String fingerprint;
+
+    Key(String contentHash, String fingerprint) {
+      this.contentHash = contentHash;
+      this.fingerprint = fingerprint;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return contentHash.equals(key.contentHash) && fingerprint.equals(key.fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(contentHash, fingerprint);
+    }
+  }
+
+  private static final class Entry {
+
+    private final Key key;
+    private final SynonymMap map;
+    private final long bytes;
+    private int references;
+    private int pinned;
+    private int warm;
+
+    Entry(Key key, SynonymMap map, long bytes) {
+      this.key = key;
+      this.map = map;
+      this.bytes = bytes;
+    }
+
+    boolean isHeld() {
+      return references > 0 || pinned > 0 || warm > 0;
+    }
+  }
+
+  /** A point in time summary of the interned maps. */
+  public static final class Stats implements ToXContentObject {
+
+    private final int entries;
+    private final long references;
+    private final long lookups;
+    private final long hits;
+    private final long bytes;
+    private final long savedBytes;
+    private final long warmBytes;
+
+    Stats(
+        int entries,
+        long references,
+        long lookups,
+        long hits,
+        long bytes,
+        long savedBytes,
+        long warmBytes) {
+      this.entries = entries;
+      this.references = references;
+      this.lookups = lookups;
+      this.hits = hits;
+      this.bytes = bytes;
+      this.savedBytes = savedBytes;
+      this.warmBytes = warmBytes;
+    }
+
+    public int getEntries() {
+      return entries;
+    }
+
+    public long getReferences() {
+      return references;
+    }
+
+    public long getSavedBytes() {
+      return savedBytes;
+    }
+
+    /** The heap used by maps kept warm for rulesets which no longer publish them. */
+    public long getWarmBytes() {
+      return warmBytes;
+    }
+
+    /** References per interned map; 1.0 means nothing is shared. */
+    public double getDedupRatio() {
+      return entries == 0 ? 1.0 : (double) references / entries;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+      builder.startObject();
+      builder.field("entries", entries);
+      builder.field("references", references);
+      builder.field("lookups", lookups);
+      builder.field("hits", hits);
+      builder.field("bytes", bytes);
+      builder.field("saved_bytes", savedBytes);
+      builder.field("dedup_ratio", getDedupRatio());
+      builder.field("warm_bytes", warmBytes);
+      builder.endObject();
+      return builder;
+    }
+  }
+}
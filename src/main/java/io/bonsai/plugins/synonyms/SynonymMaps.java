@@ -0,0 +1,107 @@
+package io.bonsai.plugins.synonyms;
+
+import java.io.IOException;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.OffHeapFSTStore;
+
+/**
+ * Binary serialization for compiled synonym maps: the FST along with the output words it points
+ * into, so a map compiled once can be loaded elsewhere without parsing the rules again.
+ *
+ * @author Dan Simpson
+ */
+public class SynonymMaps {
+
+  private static final String CODEC = "stored_synonyms_map";
+  private static final int VERSION_START = 0;
+  private static final int VERSION_CURRENT = VERSION_START;
+
+  // Per word bookkeeping in BytesRefHash: a slot in the hash table, which is at most half full, a
+  // start offset, and a length prefix in the byte pool
+  private static final long WORD_OVERHEAD = 3 * Integer.BYTES + 2;
+
+  /**
+   * Estimate the heap used by a compiled map: the FST, which is small when it reads from off the
+   * heap, and the output words.
+   *
+   * @param map - the map
+   * @return the estimated size in bytes
+   */
+  public static long ramBytesUsed(SynonymMap map) {
+    long bytes = map.fst == null ? 0 : map.fst.ramBytesUsed();
+    BytesRef scratch = new BytesRef();
+    for (int i = 0; i < map.words.size(); i++) {
+      map.words.get(i, scratch);
+      bytes += scratch.length + WORD_OVERHEAD;
+    }
+    return bytes;
+  }
+
+  /**
+   * Write a compiled map.
+   *
+   * @param map - the map, which must have an FST
+   * @param out - the destination
+   * @throws IOException
+   */
+  public static void write(SynonymMap map, DataOutput out) throws IOException {
+    CodecUtil.writeHeader(out, CODEC, VERSION_CURRENT);
+    out.writeVInt(map.maxHorizontalContext);
+    out.writeVInt(map.words.size());
+    BytesRef scratch = new BytesRef();
+    for (int i = 0; i < map.words.size(); i++) {
+      map.words.get(i, scratch);
+      out.writeVInt(scratch.length);
+      out.writeBytes(scratch.bytes, scratch.offset, scratch.length);
+    }
+    map.fst.save(out, out);
+  }
+
+  /**
+   * Read a map written by {@link #write}.
+   *
+   * @param in - the source, which must be an IndexInput to read the FST off the heap
+   * @param offHeap - whether the FST should keep reading from the source instead of the heap
+   * @return the map
+   * @throws IOException
+   */
+  public static SynonymMap read(DataInput in, boolean offHeap) throws IOException {
+    CodecUtil.checkHeader(in, CODEC, VERSION_START, VERSION_CURRENT);
+    int maxHorizontalContext = in.readVInt();
+    int count = in.readVInt();
+    BytesRefHash words = new BytesRefHash();
+    for (int i = 0; i < count; i++) {
+      byte[] bytes = new byte[in.readVInt()];
+      in.readBytes(bytes, 0, bytes.length);
+      // Words were written in id order, so they get their original ids back
+      words.add(new BytesRef(bytes));
+    }
+
+    FST<BytesRef> fst =
+        offHeap
+            ? new FST<>(in, in, ByteSequenceOutputs.getSingleton(), new OffHeapFSTStore())
+            : new FST<>(in, in, ByteSequenceOutputs.getSingleton());
+    return new SynonymMap(fst, words, maxHorizontalContext);
+  }
+
+  /** Serialize a compiled map to bytes, to store alongside its rules. */
+  public static byte[] toBytes(SynonymMap map) throws IOException {
+    ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+    write(map, out);
+    return out.toArrayCopy();
+  }
+
+  /** Load a map serialized with {@link #toBytes} onto the heap. */
+  public static SynonymMap fromBytes(byte[] bytes) throws IOException {
+    return read(new ByteArrayDataInput(bytes), false);
+  }
+}
@@ -5,11 +5,18 @@ import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.InvalidateRe
 import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.InvalidateResponse;
 import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.NodeRequest;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.elasticsearch.Version;
 import org.elasticsearch.action.ActionRequestValidationException;
 import org.elasticsearch.action.ActionType;
 import org.elasticsearch.action.FailedNodeException;
 import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.PlainActionFuture;
 import org.elasticsearch.action.support.nodes.BaseNodeRequest;
 import org.elasticsearch.action.support.nodes.BaseNodeResponse;
 import org.elasticsearch.action.support.nodes.BaseNodesRequest;
@@ -22,15 +29,24 @@ import org.elasticsearch.cluster.ClusterName;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.compress.CompressedXContent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.seqno.SequenceNumbers;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.transport.TransportService;
 
 /**
- * The invalidation action which informs nodes of changes, prompting a cache reload.
+ * The invalidation action which informs nodes of changes to one or more rulesets, prompting a
+ * cache reload.
+ *
+ * <p>Changes are either applied by each node as soon as it has compiled them, or activated in two
+ * phases: every node compiles and holds the new rules when asked to prepare, and swaps them in
+ * when asked to commit, so nodes switch within a single round trip of each other.
  *
  * @author Dan Simpson
  */
@@ -38,6 +54,12 @@ public class SynonymsTransportInvalidateAction
     extends TransportNodesAction<
         InvalidateRequest, InvalidateResponse, NodeRequest, InvalidateNodeResponse> {
 
+  /**
+   * The first version whose nodes understand patches and two phase activation. Older nodes are
+   * sent neither: they fetch patched rulesets, and apply prepared changes right away.
+   */
+  static final Version PATCH_VERSION = Version.V_7_10_2;
+
   protected static class InvalidateAction extends ActionType<InvalidateResponse> {
 
     public static final InvalidateAction INSTANCE = new InvalidateAction();
@@ -65,31 +87,225 @@ public class SynonymsTransportInvalidateAction
       super(client, action, new InvalidateRequest());
     }
 
-    public InvalidateRequestBuilder setName(final String name) {
-      request().setName(name);
+    public InvalidateRequestBuilder add(final Invalidation invalidation) {
+      request().add(invalidation);
+      return this;
+    }
+
+    public InvalidateRequestBuilder setPhase(final Phase phase) {
+      request().setPhase(phase);
       return this;
     }
   }
 
+  /** How nodes handle the changes in a request. */
+  protected enum Phase {
+    /** Apply each change as soon as it is compiled. */
+    APPLY,
+    /** Compile each change and hold it, without applying it. */
+    PREPARE,
+    /** Apply each change prepared earlier, catching up on any which weren't. */
+    COMMIT
+  }
+
+  /** A single ruleset change announced to the cluster. */
+  protected static class Invalidation implements Writeable {
+
+    private final String name;
+    private final long seqNo;
+    private final long primaryTerm;
+    private final CompressedXContent source;
+    private final boolean deleted;
+    private final StoredSynonymsPatch patch;
+    private final long baseSeqNo;
+    private final long basePrimaryTerm;
+
+    private Invalidation(
+        String name,
+        long seqNo,
+        long primaryTerm,
+        CompressedXContent source,
+        boolean deleted,
+        StoredSynonymsPatch patch,
+        long baseSeqNo,
+        long basePrimaryTerm) {
+      this.name = name;
+      this.seqNo = seqNo;
+      this.primaryTerm = primaryTerm;
+      this.source = source;
+      this.deleted = deleted;
+      this.patch = patch;
+      this.baseSeqNo = baseSeqNo;
+      this.basePrimaryTerm = basePrimaryTerm;
+    }
+
+    Invalidation(StreamInput in) throws IOException {
+      name = in.readString();
+      seqNo = in.readZLong();
+      primaryTerm = in.readVLong();
+      source = in.readBoolean() ? CompressedXContent.readCompressedString(in) : null;
+      deleted = in.readBoolean();
+      if (in.getVersion().onOrAfter(PATCH_VERSION)) {
+        patch = in.readOptionalWriteable(StoredSynonymsPatch::new);
+        baseSeqNo = in.readZLong();
+        basePrimaryTerm = in.readVLong();
+      } else {
+        patch = null;
+        baseSeqNo = SequenceNumbers.UNASSIGNED_SEQ_NO;
+        basePrimaryTerm = SequenceNumbers.UNASSIGNED_PRIMARY_TERM;
+      }
+    }
+
+    /**
+     * Announce an updated ruleset, optionally shipping its rules so nodes can skip fetching the
+     * document.
+     *
+     * @param name - the name of the ruleset
+     * @param seqNo - the sequence number of the write
+     * @param primaryTerm - the primary term of the write
+     * @param source - the compressed ruleset source, or null
+     */
+    public static Invalidation updated(
+        String name, long seqNo, long primaryTerm, CompressedXContent source) {
+      return updated(
+          name,
+          seqNo,
+          primaryTerm,
+          source,
+          null,
+          SequenceNumbers.UNASSIGNED_SEQ_NO,
+          SequenceNumbers.UNASSIGNED_PRIMARY_TERM);
+    }
+
+    private static Invalidation updated(
+        String name,
+        long seqNo,
+        long primaryTerm,
+        CompressedXContent source,
+        StoredSynonymsPatch patch,
+        long baseSeqNo,
+        long basePrimaryTerm) {
+      return new Invalidation(
+          name, seqNo, primaryTerm, source, false, patch, baseSeqNo, basePrimaryTerm);
+    }
+
+    /**
+     * Announce a patched ruleset. Nodes holding the version the patch was applied to apply it to
+     * their cached rules; any other node fetches the document.
+     *
+     * @param name - the name of the ruleset
+     * @param seqNo - the sequence number of the write
+     * @param primaryTerm - the primary term of the write
+     * @param patch - the change which was applied
+     * @param baseSeqNo - the sequence number of the version the change was applied to
+     * @param basePrimaryTerm - the primary term of the version the change was applied to
+     */
+    public static Invalidation patched(
+        String name,
+        long seqNo,
+        long primaryTerm,
+        StoredSynonymsPatch patch,
+        long baseSeqNo,
+        long basePrimaryTerm) {
+      return updated(name, seqNo, primaryTerm, null, patch, baseSeqNo, basePrimaryTerm);
+    }
+
+    /** A copy of this invalidation which doesn't ship the rules. */
+    public Invalidation withoutSource() {
+      return new Invalidation(
+          name, seqNo, primaryTerm, null, deleted, patch, baseSeqNo, basePrimaryTerm);
+    }
+
+    /** Announce a deleted ruleset, which nodes drop without fetching. */
+    public static Invalidation deleted(String name, long seqNo, long primaryTerm) {
+      return new Invalidation(
+          name,
+          seqNo,
+          primaryTerm,
+          null,
+          true,
+          null,
+          SequenceNumbers.UNASSIGNED_SEQ_NO,
+          SequenceNumbers.UNASSIGNED_PRIMARY_TERM);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+      out.writeString(name);
+      out.writeZLong(seqNo);
+      out.writeVLong(primaryTerm);
+      out.writeBoolean(source != null);
+      if (source != null) {
+        source.writeTo(out);
+      }
+      out.writeBoolean(deleted);
+      if (out.getVersion().onOrAfter(PATCH_VERSION)) {
+        out.writeOptionalWriteable(patch);
+        out.writeZLong(baseSeqNo);
+        out.writeVLong(basePrimaryTerm);
+      }
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** The sequence number of the write, or UNASSIGNED_SEQ_NO if unknown. */
+    public long getSeqNo() {
+      return seqNo;
+    }
+
+    public long getPrimaryTerm() {
+      return primaryTerm;
+    }
+
+    /** The compressed ruleset source, or null if nodes need to fetch it themselves. */
+    public CompressedXContent getSource() {
+      return source;
+    }
+
+    public boolean isDeleted() {
+      return deleted;
+    }
+
+    /** The change applied to the version at the base sequence number, or null. */
+    public StoredSynonymsPatch getPatch() {
+      return patch;
+    }
+
+    public long getBaseSeqNo() {
+      return baseSeqNo;
+    }
+
+    public long getBasePrimaryTerm() {
+      return basePrimaryTerm;
+    }
+
+    /** Whether this invalidation announces an older write than another one. */
+    public boolean isOlderThan(Invalidation other) {
+      if (primaryTerm != other.primaryTerm) {
+        return primaryTerm < other.primaryTerm;
+      }
+      return seqNo < other.seqNo;
+    }
+  }
+
   protected static class InvalidateNodeResponse extends BaseNodeResponse {
 
-    private boolean success;
-    private String name;
-    private String message;
+    private List<String> names;
+    private Map<String, String> failures;
 
     InvalidateNodeResponse(StreamInput in) throws IOException {
       super(in);
-      this.success = in.readBoolean();
-      this.name = in.readString();
-      this.message = in.readOptionalString();
+      this.names = in.readStringList();
+      this.failures = in.readMap(StreamInput::readString, StreamInput::readString);
     }
 
     public InvalidateNodeResponse(
-        final DiscoveryNode node, boolean success, String name, String message) {
+        final DiscoveryNode node, List<String> names, Map<String, String> failures) {
       super(node);
-      this.success = success;
-      this.name = name;
-      this.message = message;
+      this.names = names;
+      this.failures = failures;
     }
 
     public static InvalidateNodeResponse readNodeResponse(StreamInput in) throws IOException {
@@ -97,31 +313,25 @@ public class SynonymsTransportInvalidateAction
       return nodeResponse;
     }
 
-    public String getName() {
-      return name;
+    public List<String> getNames() {
+      return names;
     }
 
-    public String getMessage() {
-      return message;
+    /** Failure messages keyed by the name of the ruleset which failed to reload. */
+    public Map<String, String> getFailures() {
+      return failures;
     }
 
     @Override
     public void writeTo(StreamOutput out) throws IOException {
       super.writeTo(out);
-      out.writeBoolean(success);
-      out.writeString(name);
-      out.writeOptionalString(message);
+      out.writeStringCollection(names);
+      out.writeMap(failures, StreamOutput::writeString, StreamOutput::writeString);
     }
 
     @Override
     public String toString() {
-      return "InvalidateResponse [success="
-          + success
-          + " name="
-          + name
-          + ", message="
-          + message
-          + "]";
+      return "InvalidateResponse [names=" + names + ", failures=" + failures + "]";
     }
   }
 
@@ -149,44 +359,82 @@ public class SynonymsTransportInvalidateAction
         throws IOException {
       out.writeList(nodes);
     }
+
+    /** The number of nodes which failed to reload the given ruleset. */
+    public long failures(String name) {
+      return getNodes().stream().filter(node -> node.getFailures().containsKey(name)).count()
+          + failures().size();
+    }
+
+    /** Failure messages keyed by the id of each node which failed to handle the given ruleset. */
+    public Map<String, String> failedNodes(String name) {
+      Map<String, String> failed = new TreeMap<>();
+      for (InvalidateNodeResponse node : getNodes()) {
+        String failure = node.getFailures().get(name);
+        if (failure != null) {
+          failed.put(node.getNode().getId(), failure);
+        }
+      }
+      for (FailedNodeException failure : failures()) {
+        failed.put(failure.nodeId(), String.valueOf(failure.getMessage()));
+      }
+      return failed;
+    }
   }
 
   protected static class InvalidateRequest extends BaseNodesRequest<InvalidateRequest> {
 
-    private String name;
+    private List<Invalidation> invalidations = new ArrayList<>();
+    private Phase phase = Phase.APPLY;
 
     public InvalidateRequest(String... nodesIds) {
       super(nodesIds);
     }
 
-    public InvalidateRequest(final String name, String... nodesIds) {
-      super(nodesIds);
-      this.name = name;
-    }
-
     public InvalidateRequest(StreamInput in) throws IOException {
       super(in);
-      name = in.readString();
+      invalidations = in.readList(Invalidation::new);
+      phase = in.getVersion().onOrAfter(PATCH_VERSION) ? in.readEnum(Phase.class) : Phase.APPLY;
     }
 
     @Override
     public void writeTo(final StreamOutput out) throws IOException {
       super.writeTo(out);
-      out.writeString(name);
+      out.writeList(invalidations);
+      if (out.getVersion().onOrAfter(PATCH_VERSION)) {
+        out.writeEnum(phase);
+      }
     }
 
-    public String getName() {
-      return name;
+    public Phase getPhase() {
+      return phase;
     }
 
-    public void setName(final String name) {
-      this.name = name;
+    public void setPhase(final Phase phase) {
+      this.phase = phase;
+    }
+
+    public List<Invalidation> getInvalidations() {
+      return invalidations;
+    }
+
+    public void add(final Invalidation invalidation) {
+      invalidations.add(invalidation);
     }
 
     @Override
     public ActionRequestValidationException validate() {
-      if (name == null || name.length() == 0) {
-        return new ActionRequestValidationException();
+      if (invalidations.isEmpty()) {
+        ActionRequestValidationException error = new ActionRequestValidationException();
+        error.addValidationError("at least one ruleset must be invalidated");
+        return error;
+      }
+      for (Invalidation invalidation : invalidations) {
+        if (invalidation.getName() == null || invalidation.getName().length() == 0) {
+          ActionRequestValidationException error = new ActionRequestValidationException();
+          error.addValidationError("ruleset name is missing");
+          return error;
+        }
       }
       return null;
     }
@@ -234,7 +482,8 @@ public class SynonymsTransportInvalidateAction
         actionFilters,
         InvalidateRequest::new,
         NodeRequest::new,
-        ThreadPool.Names.MANAGEMENT,
+        // Node operations only wait here; the compile work runs on the plugin's own pool
+        ThreadPool.Names.GENERIC,
         InvalidateNodeResponse.class);
 
     this.service = service;
@@ -260,15 +509,45 @@ public class SynonymsTransportInvalidateAction
 
   @Override
   protected InvalidateNodeResponse nodeOperation(final NodeRequest request) {
-    String name = request.request.getName();
-
-    try {
-      service.reload(name);
-    } catch (Exception e) {
-      return new InvalidateNodeResponse(clusterService.localNode(), false, name, e.getMessage());
+    InvalidateRequest invalidate = request.request;
+
+    // Start every reload first so they proceed in parallel, then wait for them all
+    Map<String, PlainActionFuture<Void>> futures = new LinkedHashMap<>();
+    for (Invalidation invalidation : invalidate.getInvalidations()) {
+      PlainActionFuture<Void> future = PlainActionFuture.newFuture();
+      futures.put(invalidation.getName(), future);
+      switch (invalidate.getPhase()) {
+        case PREPARE:
+          service.prepare(invalidation, future);
+          break;
+        case COMMIT:
+          service.commit(invalidation, future);
+          break;
+        default:
+          service.invalidate(invalidation, future);
+      }
     }
 
-    return new InvalidateNodeResponse(clusterService.localNode(), true, name, null);
+    // The timeout covers the whole request, not each ruleset in turn
+    TimeValue timeout = invalidate.timeout();
+    long deadline = timeout == null ? 0 : System.nanoTime() + timeout.nanos();
+    Map<String, String> failures = new HashMap<>();
+    futures.forEach(
+        (name, future) -> {
+          try {
+            if (timeout != null) {
+              future.actionGet(
+                  TimeValue.timeValueNanos(Math.max(0, deadline - System.nanoTime())));
+            } else {
+              future.actionGet();
+            }
+          } catch (Exception e) {
+            failures.put(name, String.valueOf(e.getMessage()));
+          }
+        });
+
+    return new InvalidateNodeResponse(
+        clusterService.localNode(), new ArrayList<>(futures.keySet()), failures);
   }
 
   protected boolean accumulateExceptions() {
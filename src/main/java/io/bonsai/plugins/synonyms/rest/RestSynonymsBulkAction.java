@@ -0,0 +1,53 @@
+package io.bonsai.plugins.synonyms.rest;
+
+import io.bonsai.plugins.synonyms.StoredSynonymsBulk;
+import io.bonsai.plugins.synonyms.StoredSynonymsService;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.action.RestStatusToXContentListener;
+
+/**
+ * Rest handler for upserting and deleting many synonym sets with a single request, using newline
+ * delimited operations.
+ *
+ * @author Dan Simpson
+ */
+public class RestSynonymsBulkAction extends BaseRestHandler {
+
+  private StoredSynonymsService service;
+
+  public RestSynonymsBulkAction(
+      Settings _settings, RestController controller, StoredSynonymsService service) {
+    this.service = service;
+  }
+
+  @Override
+  protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client)
+      throws IOException {
+    List<StoredSynonymsBulk.Item> items = StoredSynonymsBulk.parse(request.requiredContent());
+    return (channel) -> {
+      service.bulk(items, new RestStatusToXContentListener<>(channel));
+    };
+  }
+
+  @Override
+  public boolean supportsContentStream() {
+    return true;
+  }
+
+  public String getName() {
+    return "bulk_synonyms";
+  }
+
+  @Override
+  public List<Route> routes() {
+    return Collections.singletonList(new Route(Method.POST, "/_stored_synonyms/_bulk"));
+  }
+}
@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.BytesRestResponse;
@@ -34,24 +35,78 @@ public class RestSynonymsGetAction extends BaseRestHandler {
   protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client)
       throws IOException {
     String name = request.param("collection_name");
+    boolean history = request.paramAsBoolean("history", false);
+    String ifNoneMatch = request.header("If-None-Match");
+    // A stale cached version would answer a conditional request with a wrong 304
+    boolean realtime = request.paramAsBoolean("realtime", ifNoneMatch != null);
 
     return (channel) -> {
       service.get(
           name,
+          history,
+          realtime,
           new RestActionListener<StoredSynonyms>(channel) {
 
             @Override
             protected void processResponse(StoredSynonyms synonyms) throws Exception {
-              channel.sendResponse(
-                  new BytesRestResponse(
-                      RestStatus.OK,
-                      StoredSynonymsXContent.build(
-                          synonyms, channel.newBuilder(request.getXContentType(), false))));
+              String etag = etag(synonyms, history);
+              BytesRestResponse response;
+              if (matches(ifNoneMatch, etag)) {
+                response =
+                    new BytesRestResponse(
+                        RestStatus.NOT_MODIFIED,
+                        BytesRestResponse.TEXT_CONTENT_TYPE,
+                        BytesArray.EMPTY);
+              } else {
+                response =
+                    new BytesRestResponse(
+                        RestStatus.OK,
+                        StoredSynonymsXContent.build(
+                            synonyms, channel.newBuilder(request.getXContentType(), false)));
+              }
+              response.addHeader("ETag", etag);
+              channel.sendResponse(response);
             }
           });
     };
   }
 
+  /**
+   * The entity tag of a ruleset version. Every write, including rollbacks, moves the sequence
+   * number, while writes of unchanged rules are skipped, so the tag changes exactly when the
+   * rules or their history do. Responses with the history are a different representation of the
+   * same version, so they are tagged apart.
+   *
+   * @param synonyms - the version served
+   * @param history - whether the response includes the history
+   */
+  static String etag(StoredSynonyms synonyms, boolean history) {
+    String tag = synonyms.getPrimaryTerm() + "-" + synonyms.getSeqNo() + (history ? "-h" : "");
+    return "\"" + tag + "\"";
+  }
+
+  /**
+   * Whether an If-None-Match header matches an entity tag, comparing weakly as RFC 7232 asks.
+   *
+   * @param header - the header value, a list of tags or "*", or null
+   * @param etag - the tag of the current version
+   */
+  static boolean matches(String header, String etag) {
+    if (header == null) {
+      return false;
+    }
+    for (String candidate : header.split(",")) {
+      String tag = candidate.trim();
+      if (tag.startsWith("W/")) {
+        tag = tag.substring(2);
+      }
+      if (tag.equals("*") || tag.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public String getName() {
     return "get_synonyms";
   }
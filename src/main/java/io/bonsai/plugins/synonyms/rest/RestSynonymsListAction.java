@@ -0,0 +1,52 @@
+package io.bonsai.plugins.synonyms.rest;
+
+import io.bonsai.plugins.synonyms.StoredSynonymsService;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.action.RestStatusToXContentListener;
+
+/**
+ * Rest handler for listing stored synonym sets by name, a page at a time.
+ *
+ * @author Dan Simpson
+ */
+public class RestSynonymsListAction extends BaseRestHandler {
+
+  private static final int DEFAULT_SIZE = 100;
+
+  private StoredSynonymsService service;
+
+  public RestSynonymsListAction(
+      Settings _settings, RestController controller, StoredSynonymsService service) {
+    this.service = service;
+  }
+
+  @Override
+  protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client)
+      throws IOException {
+    String prefix = request.param("prefix");
+    int from = request.paramAsInt("from", 0);
+    int size = request.paramAsInt("size", DEFAULT_SIZE);
+    String after = request.param("after");
+
+    return (channel) -> {
+      service.list(prefix, from, size, after, new RestStatusToXContentListener<>(channel));
+    };
+  }
+
+  public String getName() {
+    return "list_synonyms";
+  }
+
+  @Override
+  public List<Route> routes() {
+    return Collections.singletonList(new Route(Method.GET, "/_stored_synonyms"));
+  }
+}
@@ -0,0 +1,49 @@
+package io.bonsai.plugins.synonyms.rest;
+
+import io.bonsai.plugins.synonyms.StoredSynonymsPatch;
+import io.bonsai.plugins.synonyms.StoredSynonymsService;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.action.RestStatusToXContentListener;
+
+/**
+ * Rest handler for adding rules to, or removing rules from, an existing synonym set.
+ *
+ * @author Dan Simpson
+ */
+public class RestSynonymsPatchAction extends BaseRestHandler {
+
+  private StoredSynonymsService service;
+
+  public RestSynonymsPatchAction(
+      Settings _settings, RestController controller, StoredSynonymsService service) {
+    this.service = service;
+  }
+
+  @Override
+  protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client)
+      throws IOException {
+    String name = request.param("collection_name");
+    StoredSynonymsPatch patch = StoredSynonymsPatch.parse(request.contentParser());
+    return (channel) -> {
+      service.patch(name, patch, new RestStatusToXContentListener<>(channel));
+    };
+  }
+
+  public String getName() {
+    return "patch_synonyms";
+  }
+
+  @Override
+  public List<Route> routes() {
+    return Collections.singletonList(
+        new Route(Method.PATCH, "/_stored_synonyms/{collection_name}"));
+  }
+}
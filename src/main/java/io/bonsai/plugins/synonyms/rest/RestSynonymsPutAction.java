@@ -8,6 +8,7 @@ import java.util.Collections;
 import java.util.List;
 import org.elasticsearch.client.node.NodeClient;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.seqno.SequenceNumbers;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
@@ -31,10 +32,16 @@ public class RestSynonymsPutAction extends BaseRestHandler {
   @Override
   protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client)
       throws IOException {
-    StoredSynonyms synonyms = StoredSynonymsXContent.parseSynonymSet(request.contentParser());
+    StoredSynonyms synonyms = StoredSynonymsXContent.parseClientSet(request.contentParser());
+    long ifSeqNo = request.paramAsLong("if_seq_no", SequenceNumbers.UNASSIGNED_SEQ_NO);
+    long ifPrimaryTerm =
+        request.paramAsLong("if_primary_term", SequenceNumbers.UNASSIGNED_PRIMARY_TERM);
     return (channel) -> {
       service.store(
-          synonyms, new RestStatusToXContentListener<>(channel, r -> r.getLocation(null)));
+          synonyms,
+          ifSeqNo,
+          ifPrimaryTerm,
+          new RestStatusToXContentListener<>(channel, r -> r.getLocation(null)));
     };
   }
 
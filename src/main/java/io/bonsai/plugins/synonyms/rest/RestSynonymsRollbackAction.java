@@ -0,0 +1,49 @@
+package io.bonsai.plugins.synonyms.rest;
+
+import io.bonsai.plugins.synonyms.StoredSynonymsService;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.action.RestStatusToXContentListener;
+
+/**
+ * Rest handler for restoring an earlier version of a synonym set.
+ *
+ * @author Dan Simpson
+ */
+public class RestSynonymsRollbackAction extends BaseRestHandler {
+
+  private StoredSynonymsService service;
+
+  public RestSynonymsRollbackAction(
+      Settings _settings, RestController controller, StoredSynonymsService service) {
+    this.service = service;
+  }
+
+  @Override
+  protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client)
+      throws IOException {
+    String name = request.param("collection_name");
+    long seqNo = request.paramAsLong("seq_no", SequenceNumbers.UNASSIGNED_SEQ_NO);
+    return (channel) -> {
+      service.rollback(name, seqNo, new RestStatusToXContentListener<>(channel));
+    };
+  }
+
+  public String getName() {
+    return "rollback_synonyms";
+  }
+
+  @Override
+  public List<Route> routes() {
+    return Collections.singletonList(
+        new Route(Method.POST, "/_stored_synonyms/{collection_name}/_rollback"));
+  }
+}
@@ -0,0 +1,53 @@
+package io.bonsai.plugins.synonyms.rest;
+
+import io.bonsai.plugins.synonyms.StoredSynonymsService;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestRequest.Method;
+import org.elasticsearch.rest.RestStatus;
+
+/**
+ * Handler for reporting how compiled synonym maps are shared on the node which receives the
+ * request.
+ *
+ * @author Dan Simpson
+ */
+public class RestSynonymsStatsAction extends BaseRestHandler {
+
+  private StoredSynonymsService service;
+
+  public RestSynonymsStatsAction(
+      Settings _settings, RestController controller, StoredSynonymsService service) {
+    this.service = service;
+  }
+
+  @Override
+  protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client)
+      throws IOException {
+    return (channel) -> {
+      XContentBuilder builder = channel.newBuilder();
+      builder.startObject();
+      builder.field("interned");
+      service.internerStats().toXContent(builder, request);
+      builder.endObject();
+      channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    };
+  }
+
+  public String getName() {
+    return "synonyms_stats";
+  }
+
+  @Override
+  public List<Route> routes() {
+    return Collections.singletonList(new Route(Method.GET, "/_stored_synonyms/_stats"));
+  }
+}
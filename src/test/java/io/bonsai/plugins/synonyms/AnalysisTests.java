@@ -89,4 +89,31 @@ public class AnalysisTests extends BaseClusterTest {
             10);
     Assert.assertEquals(0, response.getHits().getTotalHits().value);
   }
+
+  @Test(timeout = 45000)
+  public void testAnalyzeWithoutIndex() throws IOException {
+    try (CurlResponse curlResponse =
+        EcrCurl.put(cluster.node(), "/_stored_synonyms")
+            .header("Content-Type", "application/json")
+            .body(getResourceStr("files/simple_synonyms.json"))
+            .execute()) {
+      Assert.assertEquals(201, curlResponse.getHttpStatusCode());
+    }
+
+    // The chain belongs to no index, but the first analysis must still apply the rules
+    String request =
+        "{ \"tokenizer\": \"whitespace\","
+            + " \"filter\": [{ \"type\": \"stored_synonyms\", \"name\": \"greetings\" }],"
+            + " \"text\": \"hello\" }";
+    for (int i = 0; i < 2; i++) {
+      try (CurlResponse curlResponse =
+          EcrCurl.post(cluster.node(), "/_analyze")
+              .header("Content-Type", "application/json")
+              .body(request)
+              .execute()) {
+        Assert.assertEquals(200, curlResponse.getHttpStatusCode());
+        Assert.assertTrue(curlResponse.getContentAsString().contains("\"aloha\""));
+      }
+    }
+  }
 }
@@ -0,0 +1,68 @@
+package io.bonsai.plugins.synonyms;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompositeSynonymsTests {
+
+  @Test
+  public void testEarlierMappingsWin() {
+    List<String> brands = Arrays.asList("apple => apple inc", "tv, television");
+    List<String> categories =
+        Arrays.asList("apple, pear => fruit", "banana => fruit", "tv, telly", "# apple => x");
+
+    Assert.assertEquals(
+        Arrays.asList(
+            "apple => apple inc",
+            "tv, television",
+            "pear => fruit",
+            "banana => fruit",
+            "tv, telly",
+            "# apple => x"),
+        CompositeSynonyms.mergeRules(Arrays.asList(brands, categories)));
+  }
+
+  @Test
+  public void testMappingsWithinARulesetCombine() {
+    List<String> rules = Arrays.asList("apple => apple inc", "apple => fruit");
+    Assert.assertEquals(rules, CompositeSynonyms.mergeRules(Collections.singletonList(rules)));
+  }
+
+  @Test
+  public void testMergeSkipsMissingMembers() {
+    Map<String, StoredSynonymsHolder> holders = new HashMap<>();
+    for (String name : Arrays.asList("brands", "categories")) {
+      holders.put(name, new StoredSynonymsHolder(name));
+    }
+    holders.get("categories").update(synonyms("categories", 1, "tv, telly"));
+
+    CompositeSynonyms composite =
+        new CompositeSynonyms(
+            Arrays.asList("brands", "categories"), new StoredSynonymsHolder("brands,categories"));
+    Assert.assertTrue(composite.schedule());
+    Assert.assertFalse(composite.schedule());
+
+    StoredSynonyms first = composite.merge((name) -> holders.get(name).snapshot());
+    Assert.assertEquals("brands,categories", first.getName());
+    Assert.assertEquals(Collections.singletonList("tv, telly"), first.getRules());
+
+    holders.get("brands").update(synonyms("brands", 1, "tv, television"));
+    StoredSynonyms second = composite.merge((name) -> holders.get(name).snapshot());
+    Assert.assertEquals(Arrays.asList("tv, television", "tv, telly"), second.getRules());
+    Assert.assertTrue(second.getSeqNo() > first.getSeqNo());
+    Assert.assertTrue(composite.schedule());
+  }
+
+  private static StoredSynonyms synonyms(String name, long seqNo, String... rules) {
+    StoredSynonyms synonyms = new StoredSynonyms();
+    synonyms.setName(name);
+    synonyms.setRules(Arrays.asList(rules));
+    synonyms.setVersion(seqNo, 1);
+    return synonyms;
+  }
+}
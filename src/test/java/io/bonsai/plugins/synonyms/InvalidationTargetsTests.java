@@ -0,0 +1,27 @@
+package io.bonsai.plugins.synonyms;
+
+import java.util.Collections;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class InvalidationTargetsTests {
+
+  @Test
+  public void testReferences() {
+    Settings settings =
+        Settings.builder()
+            .put("index.analysis.filter.single.type", "stored_synonyms")
+            .put("index.analysis.filter.single.name", "products")
+            .putList("index.analysis.filter.merged.names", "brands", "colors")
+            .put("index.analysis.filter.merged.type", "stored_synonyms")
+            .put("index.analysis.filter.plain.type", "synonym")
+            .put("index.analysis.filter.plain.name", "places")
+            .build();
+
+    Assert.assertTrue(InvalidationTargets.references(settings, Collections.singleton("products")));
+    Assert.assertTrue(InvalidationTargets.references(settings, Collections.singleton("colors")));
+    Assert.assertFalse(InvalidationTargets.references(settings, Collections.singleton("places")));
+    Assert.assertFalse(InvalidationTargets.references(Settings.EMPTY, Collections.singleton("x")));
+  }
+}
@@ -0,0 +1,86 @@
+package io.bonsai.plugins.synonyms;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OffHeapSynonymMapsTests {
+
+  private static final String FINGERPRINT = "whitespace";
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testOffloadedMapsMatch() throws IOException, ParseException {
+    OffHeapSynonymMaps maps = new OffHeapSynonymMaps(folder.getRoot().toPath(), -1, null);
+    Analyzer analyzer = new WhitespaceAnalyzer();
+    StoredSynonyms synonyms =
+        synonyms("hello, aloha", "tv => television", "big apple, new york city");
+
+    SynonymMap onHeap = StoredSynonyms.parseSynonymMap(analyzer, synonyms.getRules());
+    SynonymMap offHeap = maps.offload(onHeap);
+    Assert.assertEquals(onHeap.maxHorizontalContext, offHeap.maxHorizontalContext);
+    Assert.assertEquals(onHeap.words.size(), offHeap.words.size());
+
+    for (String text : Arrays.asList("hello there", "tv", "visit the big apple")) {
+      Assert.assertEquals(analyze(synonyms, onHeap, text), analyze(synonyms, offHeap, text));
+    }
+  }
+
+  @Test
+  public void testShouldOffload() throws IOException, ParseException {
+    StoredSynonyms synonyms = synonyms("hello, aloha");
+    SynonymMap map = StoredSynonyms.parseSynonymMap(new WhitespaceAnalyzer(), synonyms.getRules());
+
+    OffHeapSynonymMaps disabled = new OffHeapSynonymMaps(folder.getRoot().toPath(), -1, null);
+    Assert.assertFalse(disabled.shouldOffload(synonyms, map));
+    synonyms.setOffHeap(true);
+    Assert.assertTrue(disabled.shouldOffload(synonyms, map));
+
+    OffHeapSynonymMaps everything = new OffHeapSynonymMaps(folder.getRoot().toPath(), 0, null);
+    Assert.assertTrue(everything.shouldOffload(synonyms, map));
+    synonyms.setOffHeap(false);
+    Assert.assertFalse(everything.shouldOffload(synonyms, map));
+  }
+
+  private static StoredSynonyms synonyms(String... rules) {
+    StoredSynonyms synonyms = new StoredSynonyms();
+    synonyms.setName("test");
+    synonyms.setRules(new ArrayList<>(Arrays.asList(rules)));
+    return synonyms;
+  }
+
+  private static List<String> analyze(StoredSynonyms synonyms, SynonymMap map, String text)
+      throws IOException {
+    StoredSynonymsHolder holder = new StoredSynonymsHolder("test");
+    holder.update(synonyms, Collections.singletonMap(FINGERPRINT, map));
+
+    Tokenizer tokenizer = new WhitespaceTokenizer();
+    StoredSynonymFilter filter =
+        new StoredSynonymFilter(holder, FINGERPRINT, new WhitespaceAnalyzer(), tokenizer, false);
+    List<String> tokens = new ArrayList<>();
+    CharTermAttribute term = filter.addAttribute(CharTermAttribute.class);
+    tokenizer.setReader(new StringReader(text));
+    filter.reset();
+    while (filter.incrementToken()) {
+      tokens.add(term.toString());
+    }
+    filter.end();
+    filter.close();
+    return tokens;
+  }
+}
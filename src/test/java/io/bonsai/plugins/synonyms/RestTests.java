@@ -2,6 +2,8 @@ package io.bonsai.plugins.synonyms;
 
 import io.bonsai.plugins.synonyms.support.BaseClusterTest;
 import java.io.IOException;
+import java.util.List;
+import java.util.Map;
 import org.codelibs.curl.CurlResponse;
 import org.codelibs.elasticsearch.runner.net.EcrCurl;
 import org.junit.Assert;
@@ -11,6 +13,7 @@ public class RestTests extends BaseClusterTest {
 
   @Test(timeout = 45000)
   public void testCrud() throws IOException {
+    String etag;
     try (CurlResponse curlResponse =
         EcrCurl.put(cluster.node(), "/_stored_synonyms")
             .header("Content-Type", "application/json")
@@ -27,6 +30,9 @@ public class RestTests extends BaseClusterTest {
             .body(getResourceStr("files/simple_synonyms.json"))
             .execute()) {
       Assert.assertEquals(200, curlResponse.getHttpStatusCode());
+      Map<String, Object> content = curlResponse.getContent(EcrCurl.jsonParser());
+      Assert.assertEquals("noop", content.get("result"));
+      etag = "\"" + content.get("_primary_term") + "-" + content.get("_seq_no") + "\"";
     }
 
     try (CurlResponse curlResponse =
@@ -39,6 +45,23 @@ public class RestTests extends BaseClusterTest {
       Assert.assertEquals(3, synonyms.getRules().size());
     }
 
+    try (CurlResponse curlResponse =
+        EcrCurl.get(cluster.node(), "/_stored_synonyms/greetings")
+            .header("Content-Type", "application/json")
+            .header("If-None-Match", etag)
+            .execute()) {
+      Assert.assertEquals(304, curlResponse.getHttpStatusCode());
+    }
+
+    try (CurlResponse curlResponse =
+        EcrCurl.get(cluster.node(), "/_stored_synonyms/greetings")
+            .header("Content-Type", "application/json")
+            .header("If-None-Match", etag)
+            .param("history", "true")
+            .execute()) {
+      Assert.assertEquals(200, curlResponse.getHttpStatusCode());
+    }
+
     try (CurlResponse curlResponse =
         EcrCurl.delete(cluster.node(), "/_stored_synonyms/greetings")
             .header("Content-Type", "application/json")
@@ -65,4 +88,120 @@ public class RestTests extends BaseClusterTest {
       Assert.assertTrue(curlResponse.getContentAsString().contains("No rules accepted"));
     }
   }
+
+  @Test(timeout = 45000)
+  public void testBulk() throws IOException {
+    String body =
+        "{\"upsert\": {\"name\": \"colors\", \"rules\": [\"red,crimson\"]}}\n"
+            + "{\"upsert\": {\"name\": \"broken\", \"rules\": [\",,,\"]}}\n"
+            + "{\"delete\": {\"name\": \"colors\"}}\n";
+
+    try (CurlResponse curlResponse =
+        EcrCurl.post(cluster.node(), "/_stored_synonyms/_bulk")
+            .header("Content-Type", "application/x-ndjson")
+            .body(body)
+            .execute()) {
+      Assert.assertEquals(200, curlResponse.getHttpStatusCode());
+      Map<String, Object> content = curlResponse.getContent(EcrCurl.jsonParser());
+      Assert.assertEquals(true, content.get("errors"));
+
+      List<?> items = (List<?>) content.get("items");
+      Assert.assertEquals(3, items.size());
+      Assert.assertEquals(201, status(items.get(0), "upsert"));
+      Assert.assertEquals(422, status(items.get(1), "upsert"));
+      Assert.assertEquals(200, status(items.get(2), "delete"));
+    }
+
+    try (CurlResponse curlResponse =
+        EcrCurl.get(cluster.node(), "/_stored_synonyms/colors")
+            .header("Content-Type", "application/json")
+            .execute()) {
+      Assert.assertEquals(404, curlResponse.getHttpStatusCode());
+    }
+  }
+
+  @Test(timeout = 120000)
+  public void testLargeBulk() throws IOException {
+    // More upserts than the queue of the compile pool holds
+    int count = 1500;
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      body.append("{\"upsert\": {\"name\": \"bulk_")
+          .append(i)
+          .append("\", \"rules\": [\"red,crimson\"]}}\n");
+    }
+
+    try (CurlResponse curlResponse =
+        EcrCurl.post(cluster.node(), "/_stored_synonyms/_bulk")
+            .header("Content-Type", "application/x-ndjson")
+            .body(body.toString())
+            .execute()) {
+      Assert.assertEquals(200, curlResponse.getHttpStatusCode());
+      Map<String, Object> content = curlResponse.getContent(EcrCurl.jsonParser());
+      Assert.assertEquals(false, content.get("errors"));
+
+      List<?> items = (List<?>) content.get("items");
+      Assert.assertEquals(count, items.size());
+      for (Object item : items) {
+        Assert.assertEquals(201, status(item, "upsert"));
+      }
+    }
+  }
+
+  @Test(timeout = 45000)
+  public void testList() throws IOException {
+    String body =
+        "{\"upsert\": {\"name\": \"listed_sizes\", \"rules\": [\"xl => extra large\"]}}\n"
+            + "{\"upsert\": {\"name\": \"listed_colors\","
+            + " \"rules\": [\"red,crimson\", \"blue,navy\"]}}\n";
+
+    try (CurlResponse curlResponse =
+        EcrCurl.post(cluster.node(), "/_stored_synonyms/_bulk")
+            .header("Content-Type", "application/x-ndjson")
+            .body(body)
+            .execute()) {
+      Assert.assertEquals(200, curlResponse.getHttpStatusCode());
+    }
+
+    try (CurlResponse curlResponse =
+        EcrCurl.get(cluster.node(), "/_stored_synonyms")
+            .param("prefix", "listed_")
+            .param("size", "1")
+            .execute()) {
+      Assert.assertEquals(200, curlResponse.getHttpStatusCode());
+      Map<String, Object> content = curlResponse.getContent(EcrCurl.jsonParser());
+      Assert.assertEquals(2, ((Number) content.get("total")).intValue());
+      Assert.assertEquals("listed_colors", content.get("next"));
+
+      List<?> rulesets = (List<?>) content.get("rulesets");
+      Assert.assertEquals(1, rulesets.size());
+      Map<?, ?> colors = (Map<?, ?>) rulesets.get(0);
+      Assert.assertEquals("listed_colors", colors.get("name"));
+      Assert.assertEquals(2, ((Number) colors.get("rule_count")).intValue());
+      Assert.assertEquals(20, ((Number) colors.get("source_bytes")).intValue());
+    }
+
+    try (CurlResponse curlResponse =
+        EcrCurl.get(cluster.node(), "/_stored_synonyms")
+            .param("prefix", "listed_")
+            .param("after", "listed_colors")
+            .execute()) {
+      Map<String, Object> content = curlResponse.getContent(EcrCurl.jsonParser());
+      List<?> rulesets = (List<?>) content.get("rulesets");
+      Assert.assertEquals(1, rulesets.size());
+      Assert.assertEquals("listed_sizes", ((Map<?, ?>) rulesets.get(0)).get("name"));
+    }
+
+    try (CurlResponse curlResponse =
+        EcrCurl.get(cluster.node(), "/_stored_synonyms")
+            .param("from", "1")
+            .param("after", "listed_colors")
+            .execute()) {
+      Assert.assertEquals(400, curlResponse.getHttpStatusCode());
+    }
+  }
+
+  private static int status(Object item, String op) {
+    return ((Number) ((Map<?, ?>) ((Map<?, ?>) item).get(op)).get("status")).intValue();
+  }
 }
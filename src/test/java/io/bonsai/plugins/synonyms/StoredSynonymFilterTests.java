@@ -0,0 +1,263 @@
+package io.bonsai.plugins.synonyms;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.index.seqno.SequenceNumbers;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StoredSynonymFilterTests {
+
+  private static final String FINGERPRINT = "whitespace";
+
+  @Test
+  public void testSwapOnReset() throws IOException {
+    StoredSynonymsHolder holder = new StoredSynonymsHolder("test");
+    holder.update(synonyms("hello,aloha"));
+
+    Tokenizer tokenizer = new WhitespaceTokenizer();
+    StoredSynonymFilter filter =
+        new StoredSynonymFilter(holder, FINGERPRINT, new WhitespaceAnalyzer(), tokenizer, false);
+    Assert.assertTrue(analyze(filter, tokenizer, "hello").contains("aloha"));
+
+    holder.update(synonyms("hello,hi"));
+    List<String> tokens = analyze(filter, tokenizer, "hello");
+    Assert.assertTrue(tokens.contains("hi"));
+    Assert.assertFalse(tokens.contains("aloha"));
+
+    holder.remove(SequenceNumbers.UNASSIGNED_SEQ_NO, SequenceNumbers.UNASSIGNED_PRIMARY_TERM);
+    Assert.assertEquals(Arrays.asList("hello"), analyze(filter, tokenizer, "hello"));
+  }
+
+  @Test
+  public void testServesPreviousRulesUntilCompiled() throws IOException {
+    List<Runnable> compiles = new ArrayList<>();
+    AtomicInteger compiledNow = new AtomicInteger();
+    StoredSynonymsHolder holder =
+        new StoredSynonymsHolder(
+            "test",
+            (previous, next) -> {},
+            new StoredSynonymsHolder.MapCompiler() {
+              @Override
+              public void compile(
+                  StoredSynonymsHolder self,
+                  StoredSynonymsHolder.Snapshot snapshot,
+                  String fingerprint,
+                  Analyzer analyzer) {
+                compiles.add(
+                    () ->
+                        self.install(
+                            snapshot.synonyms(), fingerprint, parse(snapshot, analyzer)));
+              }
+
+              @Override
+              public void compileNow(
+                  StoredSynonymsHolder self,
+                  StoredSynonymsHolder.Snapshot snapshot,
+                  String fingerprint,
+                  Analyzer analyzer) {
+                compiledNow.incrementAndGet();
+                self.install(snapshot.synonyms(), fingerprint, parse(snapshot, analyzer));
+              }
+            });
+    holder.update(synonyms("hello,aloha"));
+    Analyzer analyzer = new WhitespaceAnalyzer();
+    holder.registerChain(FINGERPRINT, analyzer);
+
+    // A chain with no map for earlier rules has nothing to serve, so it compiles right away
+    Tokenizer tokenizer = new WhitespaceTokenizer();
+    StoredSynonymFilter filter =
+        new StoredSynonymFilter(holder, FINGERPRINT, analyzer, tokenizer, false);
+    Assert.assertTrue(analyze(filter, tokenizer, "hello").contains("aloha"));
+    Assert.assertEquals(1, compiledNow.get());
+    Assert.assertEquals(0, compiles.size());
+
+    // Both filters keep the previous rules, and the new ones are only compiled once
+    holder.update(synonyms("hello,hi"));
+    Assert.assertTrue(analyze(filter, tokenizer, "hello").contains("aloha"));
+    Tokenizer other = new WhitespaceTokenizer();
+    StoredSynonymFilter late = new StoredSynonymFilter(holder, FINGERPRINT, analyzer, other, false);
+    Assert.assertTrue(analyze(late, other, "hello").contains("aloha"));
+    Assert.assertEquals(1, compiles.size());
+
+    compiles.remove(0).run();
+    List<String> tokens = analyze(filter, tokenizer, "hello");
+    Assert.assertTrue(tokens.contains("hi"));
+    Assert.assertFalse(tokens.contains("aloha"));
+    Assert.assertTrue(analyze(late, other, "hello").contains("hi"));
+    Assert.assertEquals(1, compiledNow.get());
+
+    // Once released, the chain's map isn't carried over to later rules
+    holder.unregisterChain(FINGERPRINT);
+    holder.update(synonyms("hello,hey"));
+    Assert.assertTrue(analyze(filter, tokenizer, "hello").contains("hey"));
+    Assert.assertEquals(2, compiledNow.get());
+    Assert.assertEquals(0, compiles.size());
+  }
+
+  @Test
+  public void testOlderVersionsAreIgnored() throws IOException {
+    StoredSynonymsHolder holder = new StoredSynonymsHolder("test");
+    Assert.assertTrue(holder.update(synonyms(5, 1, "hello,aloha")));
+    Assert.assertFalse(holder.update(synonyms(4, 1, "hello,hi")));
+    Assert.assertFalse(holder.update(synonyms(5, 1, "hello,hi")));
+    Assert.assertFalse(holder.remove(3, 1));
+
+    Tokenizer tokenizer = new WhitespaceTokenizer();
+    StoredSynonymFilter filter =
+        new StoredSynonymFilter(holder, FINGERPRINT, new WhitespaceAnalyzer(), tokenizer, false);
+    Assert.assertTrue(analyze(filter, tokenizer, "hello").contains("aloha"));
+
+    // A new primary term wins even with a lower sequence number
+    Assert.assertTrue(holder.update(synonyms(2, 2, "hello,hi")));
+    Assert.assertTrue(analyze(filter, tokenizer, "hello").contains("hi"));
+    Assert.assertTrue(holder.remove(3, 2));
+    Assert.assertFalse(holder.update(synonyms(2, 2, "hello,hi")));
+  }
+
+  @Test(timeout = 30000)
+  public void testFiltersAreCollected() throws InterruptedException {
+    StoredSynonymsHolder holder = new StoredSynonymsHolder("test");
+    holder.update(synonyms("hello,aloha"));
+    Analyzer analyzer = new WhitespaceAnalyzer();
+
+    List<WeakReference<StoredSynonymFilter>> filters = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      filters.add(
+          new WeakReference<>(
+              new StoredSynonymFilter(
+                  holder, FINGERPRINT, analyzer, new WhitespaceTokenizer(), false)));
+    }
+
+    // Updating the holder must not pin any of the filters created above
+    holder.update(synonyms("hello,hi"));
+
+    while (filters.stream().anyMatch(ref -> ref.get() != null)) {
+      System.gc();
+      Thread.sleep(50);
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentUpdatesNeverExposePassThrough() throws Exception {
+    StoredSynonymsHolder holder = new StoredSynonymsHolder("test");
+    holder.update(synonyms("hello,aloha"));
+
+    // Every ruleset maps hello to aloha, so every analysis must see the synonym
+    StoredSynonyms[] rulesets = {
+      synonyms("hello,aloha"), synonyms("hello,aloha,hi"), synonyms("hello,aloha", "goodbye,ciao")
+    };
+
+    AtomicBoolean running = new AtomicBoolean(true);
+    AtomicReference<String> failure = new AtomicReference<>();
+    AtomicInteger analyses = new AtomicInteger();
+    Analyzer analyzer = new WhitespaceAnalyzer();
+    int threads = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+    CountDownLatch done = new CountDownLatch(threads);
+
+    for (int i = 0; i < threads; i++) {
+      new Thread(
+              () -> {
+                try {
+                  Tokenizer tokenizer = new WhitespaceTokenizer();
+                  StoredSynonymFilter filter =
+                      new StoredSynonymFilter(holder, FINGERPRINT, analyzer, tokenizer, false);
+                  while (running.get() && failure.get() == null) {
+                    List<String> tokens = analyze(filter, tokenizer, "hello");
+                    if (!tokens.contains("hello") || !tokens.contains("aloha")) {
+                      failure.set("Unexpected tokens " + tokens);
+                    }
+                    analyses.incrementAndGet();
+                  }
+                } catch (Throwable t) {
+                  failure.set(t.toString());
+                } finally {
+                  done.countDown();
+                }
+              })
+          .start();
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+    int updates = 0;
+    while (System.nanoTime() < deadline && failure.get() == null) {
+      holder.update(rulesets[updates++ % rulesets.length]);
+    }
+
+    running.set(false);
+    done.await();
+
+    Assert.assertNull(failure.get());
+    Assert.assertTrue(analyses.get() > 0);
+    Assert.assertEquals(updates + 1, holder.snapshot().generation());
+  }
+
+  @Test
+  public void testPackedRules() throws IOException {
+    StoredSynonyms packed = synonyms("hello,aloha", "tv,television");
+    long unpacked = packed.ramBytesUsed();
+    packed.packRules();
+    Assert.assertEquals(2, packed.getRuleCount());
+    Assert.assertEquals(Arrays.asList("hello,aloha", "tv,television"), packed.getRules());
+    Assert.assertTrue(packed.ramBytesUsed() < unpacked);
+
+    StoredSynonymsHolder holder = new StoredSynonymsHolder("test");
+    holder.update(packed);
+    Assert.assertFalse(holder.snapshot().isEmpty());
+
+    Tokenizer tokenizer = new WhitespaceTokenizer();
+    StoredSynonymFilter filter =
+        new StoredSynonymFilter(holder, FINGERPRINT, new WhitespaceAnalyzer(), tokenizer, false);
+    Assert.assertTrue(analyze(filter, tokenizer, "tv").contains("television"));
+  }
+
+  private static StoredSynonyms synonyms(String... rules) {
+    return synonyms(
+        SequenceNumbers.UNASSIGNED_SEQ_NO, SequenceNumbers.UNASSIGNED_PRIMARY_TERM, rules);
+  }
+
+  private static StoredSynonyms synonyms(long seqNo, long primaryTerm, String... rules) {
+    StoredSynonyms synonyms = new StoredSynonyms();
+    synonyms.setName("test");
+    synonyms.setRules(new ArrayList<>(Arrays.asList(rules)));
+    synonyms.setVersion(seqNo, primaryTerm);
+    return synonyms;
+  }
+
+  private static SynonymMap parse(StoredSynonymsHolder.Snapshot snapshot, Analyzer analyzer) {
+    try {
+      return StoredSynonyms.parseSynonymMap(analyzer, snapshot.synonyms().getRules());
+    } catch (Exception error) {
+      throw new AssertionError(error);
+    }
+  }
+
+  private static List<String> analyze(StoredSynonymFilter filter, Tokenizer tokenizer, String text)
+      throws IOException {
+    List<String> tokens = new ArrayList<>();
+    CharTermAttribute term = filter.addAttribute(CharTermAttribute.class);
+    tokenizer.setReader(new StringReader(text));
+    filter.reset();
+    while (filter.incrementToken()) {
+      tokens.add(term.toString());
+    }
+    filter.end();
+    filter.close();
+    return tokens;
+  }
+}
@@ -0,0 +1,61 @@
+package io.bonsai.plugins.synonyms;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.lucene.index.CorruptIndexException;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StoredSynonymsDiskStoreTests {
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    StoredSynonymsDiskStore store = new StoredSynonymsDiskStore(folder.getRoot().toPath());
+    Assert.assertTrue(store.read().getRulesets().isEmpty());
+
+    StoredSynonyms colors = new StoredSynonyms();
+    colors.setName("colors");
+    colors.setRules(Arrays.asList("red,crimson", "blue => navy"));
+    colors.setVersion(7, 2);
+    store.write("uuid", Collections.singletonList(colors));
+
+    StoredSynonymsDiskStore.Contents contents = store.read();
+    Assert.assertEquals("uuid", contents.getIndexUuid());
+    Assert.assertEquals(1, contents.getRulesets().size());
+
+    StoredSynonyms read = contents.getRulesets().get(0);
+    Assert.assertEquals("colors", read.getName());
+    Assert.assertEquals(colors.getRules(), read.getRules());
+    Assert.assertEquals(7, read.getSeqNo());
+    Assert.assertEquals(2, read.getPrimaryTerm());
+
+    // Rewrites replace the previous copy
+    store.write(null, Collections.emptyList());
+    Assert.assertNull(store.read().getIndexUuid());
+    Assert.assertTrue(store.read().getRulesets().isEmpty());
+  }
+
+  @Test(expected = CorruptIndexException.class)
+  public void testCorruptionIsDetected() throws IOException {
+    Path path = folder.getRoot().toPath();
+    StoredSynonymsDiskStore store = new StoredSynonymsDiskStore(path);
+
+    StoredSynonyms colors = new StoredSynonyms();
+    colors.setName("colors");
+    colors.setRules(Collections.singletonList("red,crimson"));
+    store.write("uuid", Collections.singletonList(colors));
+
+    Path file = path.resolve("rulesets.dat");
+    byte[] bytes = Files.readAllBytes(file);
+    bytes[bytes.length / 2] ^= 0x5a;
+    Files.write(file, bytes);
+    store.read();
+  }
+}
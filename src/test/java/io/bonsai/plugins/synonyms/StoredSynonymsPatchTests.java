@@ -0,0 +1,74 @@
+package io.bonsai.plugins.synonyms;
+
+import io.bonsai.plugins.synonyms.SynonymsTransportInvalidateAction.Invalidation;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.elasticsearch.Version;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StoredSynonymsPatchTests {
+
+  @Test
+  public void testApply() {
+    List<String> rules = Arrays.asList("hello, aloha", "tv, television", "big, large");
+    StoredSynonymsPatch patch =
+        new StoredSynonymsPatch(
+            Arrays.asList("laptop, notebook", " big, large"), Arrays.asList("tv, television "));
+
+    Assert.assertEquals(
+        Arrays.asList("hello, aloha", "big, large", "laptop, notebook"), patch.apply(rules));
+    Assert.assertEquals(3, rules.size());
+  }
+
+  @Test
+  public void testParse() throws IOException {
+    try (XContentParser parser =
+        JsonXContent.jsonXContent.createParser(
+            NamedXContentRegistry.EMPTY,
+            LoggingDeprecationHandler.INSTANCE,
+            "{\"add\": [\"a, b\"]}")) {
+      StoredSynonymsPatch patch = StoredSynonymsPatch.parse(parser);
+      Assert.assertEquals(Collections.singletonList("a, b"), patch.getAdd());
+      Assert.assertTrue(patch.getRemove().isEmpty());
+      Assert.assertFalse(patch.isEmpty());
+    }
+  }
+
+  @Test
+  public void testPatchIsOnlySentToNodesWhichUnderstandIt() throws IOException {
+    StoredSynonymsPatch patch =
+        new StoredSynonymsPatch(Arrays.asList("a, b"), Collections.emptyList());
+    Invalidation patched = Invalidation.patched("test", 5, 1, patch, 4, 1);
+
+    Invalidation current = roundTrip(patched, Version.CURRENT);
+    Assert.assertEquals(Arrays.asList("a, b"), current.getPatch().getAdd());
+    Assert.assertEquals(4, current.getBaseSeqNo());
+
+    // Older nodes see an update without its rules, and fetch the ruleset
+    Invalidation older = roundTrip(patched, Version.V_7_10_1);
+    Assert.assertNull(older.getPatch());
+    Assert.assertNull(older.getSource());
+    Assert.assertEquals(5, older.getSeqNo());
+  }
+
+  private static Invalidation roundTrip(Invalidation invalidation, Version version)
+      throws IOException {
+    try (BytesStreamOutput out = new BytesStreamOutput()) {
+      out.setVersion(version);
+      invalidation.writeTo(out);
+      try (StreamInput in = out.bytes().streamInput()) {
+        in.setVersion(version);
+        return new Invalidation(in);
+      }
+    }
+  }
+}
@@ -0,0 +1,185 @@
+package io.bonsai.plugins.synonyms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SynonymMapInternerTests {
+
+  private static final String FINGERPRINT = "whitespace";
+
+  @Test
+  public void testIdenticalRulesShareMaps() throws Exception {
+    List<SynonymMap> evicted = new ArrayList<>();
+    SynonymMapInterner interner = new SynonymMapInterner(evicted::add);
+    AtomicInteger compiles = new AtomicInteger();
+    List<String> rules = Arrays.asList("tv, television");
+    String hash = StoredSynonyms.contentHash(rules);
+
+    SynonymMap first = interner.intern(hash, FINGERPRINT, () -> compile(compiles, rules));
+    SynonymMap second = interner.intern(hash, FINGERPRINT, () -> compile(compiles, rules));
+    Assert.assertSame(first, second);
+    Assert.assertEquals(1, compiles.get());
+
+    // Two rulesets publish the shared map
+    interner.retire(Collections.emptyList(), Collections.singletonList(first));
+    interner.retire(Collections.emptyList(), Collections.singletonList(second));
+    interner.settle(Arrays.asList(first, second));
+
+    SynonymMapInterner.Stats stats = interner.stats();
+    Assert.assertEquals(1, stats.getEntries());
+    Assert.assertEquals(2, stats.getReferences());
+    Assert.assertEquals(2.0, stats.getDedupRatio(), 0.001);
+    Assert.assertTrue(stats.getSavedBytes() > 0);
+
+    interner.retire(Collections.singletonList(first), Collections.emptyList());
+    Assert.assertTrue(evicted.isEmpty());
+    interner.retire(Collections.singletonList(second), Collections.emptyList());
+    Assert.assertEquals(Collections.singletonList(first), evicted);
+    Assert.assertEquals(0, interner.stats().getEntries());
+  }
+
+  @Test
+  public void testUnpublishedMapsAreEvicted() throws Exception {
+    List<SynonymMap> evicted = new ArrayList<>();
+    SynonymMapInterner interner = new SynonymMapInterner(evicted::add);
+    List<String> rules = Arrays.asList("tv, television");
+    String hash = StoredSynonyms.contentHash(rules);
+
+    SynonymMap map = interner.intern(hash, FINGERPRINT, () -> compile(new AtomicInteger(), rules));
+    interner.settle(Collections.singletonList(map));
+    Assert.assertEquals(Collections.singletonList(map), evicted);
+    Assert.assertEquals(0, interner.stats().getEntries());
+  }
+
+  @Test
+  public void testWarmMapsOutliveTheirSnapshot() throws Exception {
+    List<String> rules = Arrays.asList("tv, television");
+    long bytes = SynonymMaps.ramBytesUsed(compile(new AtomicInteger(), rules));
+    List<SynonymMap> evicted = new ArrayList<>();
+    SynonymMapInterner interner =
+        new SynonymMapInterner(
+            new LimitedBreaker(10 * bytes),
+            bytes,
+            (wanted) -> {},
+            evicted::add);
+    AtomicInteger compiles = new AtomicInteger();
+    String hash = StoredSynonyms.contentHash(rules);
+
+    SynonymMap map = interner.intern(hash, FINGERPRINT, () -> compile(compiles, rules));
+    interner.retire(Collections.emptyList(), Collections.singletonList(map));
+    interner.settle(Collections.singletonList(map));
+
+    // The ruleset switches away from the map, which stays interned
+    interner.warm("colors", Collections.singletonList(map));
+    interner.retire(Collections.singletonList(map), Collections.emptyList());
+    Assert.assertTrue(evicted.isEmpty());
+    Assert.assertEquals(bytes, interner.stats().getWarmBytes());
+
+    // Switching back finds it compiled
+    Assert.assertSame(map, interner.intern(hash, FINGERPRINT, () -> compile(compiles, rules)));
+    Assert.assertEquals(1, compiles.get());
+    interner.settle(Collections.singletonList(map));
+
+    // Warming another ruleset's maps past the limit releases the oldest
+    List<String> other = Arrays.asList("laptop, notebook");
+    SynonymMap second =
+        interner.intern(
+            StoredSynonyms.contentHash(other), FINGERPRINT, () -> compile(compiles, other));
+    interner.retire(Collections.emptyList(), Collections.singletonList(second));
+    interner.settle(Collections.singletonList(second));
+    interner.warm("sizes", Collections.singletonList(second));
+    Assert.assertEquals(Collections.singletonList(map), evicted);
+  }
+
+  @Test
+  public void testBreakerReclaimsBeforeTripping() throws Exception {
+    List<String> rules = Arrays.asList("tv, television", "laptop, notebook");
+    long bytes = SynonymMaps.ramBytesUsed(compile(new AtomicInteger(), rules));
+    CircuitBreaker breaker = new LimitedBreaker(bytes + bytes / 2);
+    AtomicInteger reclaimed = new AtomicInteger();
+    List<SynonymMap> evicted = new ArrayList<>();
+    SynonymMapInterner interner =
+        new SynonymMapInterner(breaker, (wanted) -> reclaimed.incrementAndGet(), evicted::add);
+
+    SynonymMap first =
+        interner.intern("first", FINGERPRINT, () -> compile(new AtomicInteger(), rules));
+    Assert.assertEquals(bytes, breaker.getUsed());
+
+    try {
+      interner.intern("second", FINGERPRINT, () -> compile(new AtomicInteger(), rules));
+      Assert.fail("expected the breaker to trip");
+    } catch (CircuitBreakingException expected) {
+      Assert.assertEquals(1, reclaimed.get());
+      Assert.assertEquals(1, evicted.size());
+    }
+
+    interner.settle(Collections.singletonList(first));
+    Assert.assertEquals(0, breaker.getUsed());
+  }
+
+  @Test
+  public void testContentHash() {
+    Assert.assertEquals(
+        StoredSynonyms.contentHash(Arrays.asList("a, b", "c, d")),
+        StoredSynonyms.contentHash(Arrays.asList("a, b", "c, d")));
+    Assert.assertNotEquals(
+        StoredSynonyms.contentHash(Arrays.asList("a, b", "c, d")),
+        StoredSynonyms.contentHash(Arrays.asList("a, b, c, d")));
+  }
+
+  private static SynonymMap compile(AtomicInteger compiles, List<String> rules) throws Exception {
+    compiles.incrementAndGet();
+    return StoredSynonyms.parseSynonymMap(new WhitespaceAnalyzer(), rules);
+  }
+
+  /** A breaker which trips past a fixed limit, keeping count of what is charged to it. */
+  private static final class LimitedBreaker extends NoopCircuitBreaker {
+
+    private final long limit;
+    private long used;
+
+    LimitedBreaker(long limit) {
+      super("test");
+      this.limit = limit;
+    }
+
+    @Override
+    public synchronized double addEstimateBytesAndMaybeBreak(long bytes, String label) {
+      if (used + bytes > limit) {
+        throw new CircuitBreakingException(
+            "[test] " + label + " would use too much memory",
+            used + bytes,
+            limit,
+            Durability.TRANSIENT);
+      }
+      used += bytes;
+      return used;
+    }
+
+    @Override
+    public synchronized long addWithoutBreaking(long bytes) {
+      used += bytes;
+      return used;
+    }
+
+    @Override
+    public synchronized long getUsed() {
+      return used;
+    }
+
+    @Override
+    public long getLimit() {
+      return limit;
+    }
+  }
+}
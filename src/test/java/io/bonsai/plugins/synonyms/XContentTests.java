@@ -2,7 +2,16 @@ package io.bonsai.plugins.synonyms;
 
 import io.bonsai.plugins.synonyms.support.TestSupport;
 import java.io.IOException;
+import java.text.ParseException;
+import java.util.Collections;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.ParsingException;
 import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
 import org.junit.Assert;
 import org.junit.Test;
@@ -36,4 +45,105 @@ public class XContentTests implements TestSupport {
     Assert.assertEquals("nawww", synonyms2.getName());
     Assert.assertEquals(2, synonyms2.getRules().size());
   }
+
+  @Test
+  public void testContentHash() throws IOException {
+    StoredSynonyms synonyms =
+        StoredSynonymsXContent.parse(getResource("files/simple_synonyms.json"));
+    byte[] raw =
+        BytesReference.toBytes(
+            BytesReference.bytes(
+                StoredSynonymsXContent.build(synonyms, JsonXContent.contentBuilder())));
+
+    StoredSynonyms stored = StoredSynonymsXContent.parse(raw);
+    Assert.assertEquals(StoredSynonyms.contentHash(synonyms.getRules()), stored.getContentHash());
+    Assert.assertTrue(stored.isSameContent(synonyms));
+
+    stored.setRules(Collections.singletonList("hello,aloha"));
+    Assert.assertFalse(stored.isSameContent(synonyms));
+  }
+
+  @Test
+  public void testCompiledMaps() throws IOException, ParseException {
+    StoredSynonyms synonyms =
+        StoredSynonymsXContent.parse(getResource("files/simple_synonyms.json"));
+    SynonymMap map = StoredSynonyms.parseSynonymMap(new WhitespaceAnalyzer(), synonyms.getRules());
+    synonyms.setCompiled(Collections.singletonMap("chain", SynonymMaps.toBytes(map)));
+
+    // Compiled maps are only part of the stored document
+    byte[] view =
+        BytesReference.toBytes(
+            BytesReference.bytes(
+                StoredSynonymsXContent.build(synonyms, JsonXContent.contentBuilder())));
+    Assert.assertTrue(StoredSynonymsXContent.parse(view).getCompiled().isEmpty());
+
+    byte[] document =
+        BytesReference.toBytes(
+            BytesReference.bytes(
+                StoredSynonymsXContent.buildDocument(synonyms, JsonXContent.contentBuilder())));
+    StoredSynonyms stored = StoredSynonymsXContent.parse(document);
+    SynonymMap loaded = SynonymMaps.fromBytes(stored.getCompiled().get("chain"));
+    Assert.assertEquals(map.words.size(), loaded.words.size());
+    Assert.assertEquals(map.maxHorizontalContext, loaded.maxHorizontalContext);
+    for (int i = 0; i < map.words.size(); i++) {
+      Assert.assertEquals(map.words.get(i, new BytesRef()), loaded.words.get(i, new BytesRef()));
+    }
+  }
+
+  @Test
+  public void testHistory() throws IOException {
+    StoredSynonyms synonyms =
+        StoredSynonymsXContent.parse(getResource("files/simple_synonyms.json"));
+    StoredSynonyms earlier = new StoredSynonyms();
+    earlier.setRules(Collections.singletonList("hello,aloha"));
+    earlier.setVersion(4, 1);
+    synonyms.setHistory(Collections.singletonList(earlier));
+
+    byte[] document =
+        BytesReference.toBytes(
+            BytesReference.bytes(
+                StoredSynonymsXContent.buildDocument(synonyms, JsonXContent.contentBuilder())));
+    StoredSynonyms stored = StoredSynonymsXContent.parse(document);
+    Assert.assertEquals(1, stored.getHistory().size());
+    Assert.assertEquals(earlier.getRules(), stored.getHistory().get(0).getRules());
+    Assert.assertEquals(4, stored.getHistory().get(0).getSeqNo());
+    Assert.assertEquals(1, stored.getHistory().get(0).getPrimaryTerm());
+
+    // Nodes caching the rules are sent them without the history
+    byte[] cached =
+        BytesReference.toBytes(
+            BytesReference.bytes(
+                StoredSynonymsXContent.buildDocument(
+                    synonyms, JsonXContent.contentBuilder(), false)));
+    Assert.assertTrue(StoredSynonymsXContent.parse(cached).getHistory().isEmpty());
+  }
+
+  @Test
+  public void testClientFields() throws IOException, ParseException {
+    StoredSynonyms synonyms =
+        StoredSynonymsXContent.parse(getResource("files/simple_synonyms.json"));
+    synonyms.setContentHash("forged");
+    byte[] raw =
+        BytesReference.toBytes(
+            BytesReference.bytes(
+                StoredSynonymsXContent.build(synonyms, JsonXContent.contentBuilder())));
+    StoredSynonyms parsed = parseClient(raw);
+    Assert.assertEquals(StoredSynonyms.contentHash(synonyms.getRules()), parsed.getContentHash());
+
+    SynonymMap map = StoredSynonyms.parseSynonymMap(new WhitespaceAnalyzer(), synonyms.getRules());
+    synonyms.setCompiled(Collections.singletonMap("chain", SynonymMaps.toBytes(map)));
+    byte[] document =
+        BytesReference.toBytes(
+            BytesReference.bytes(
+                StoredSynonymsXContent.buildDocument(synonyms, JsonXContent.contentBuilder())));
+    Assert.assertThrows(ParsingException.class, () -> parseClient(document));
+  }
+
+  private static StoredSynonyms parseClient(byte[] bytes) throws IOException {
+    try (XContentParser parser =
+        JsonXContent.jsonXContent.createParser(
+            NamedXContentRegistry.EMPTY, LoggingDeprecationHandler.INSTANCE, bytes)) {
+      return StoredSynonymsXContent.parseClientSet(parser);
+    }
+  }
 }